@@ -0,0 +1,67 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ *  A cursor over a sorted array of docIDs, e.g. the documents of an
+ *  intersection of doc sets, with or without positions. The positions of
+ *  the k:th document are positions[starts[k]] to positions[starts[k + 1]].
+ */
+public class ArrayPostingsCursor implements PostingsCursor {
+
+    private int[] docIDs;
+    private int[] starts;
+    private int[] positions;
+
+    /** Position of the current document in the array, -1 before the first. */
+    private int i = -1;
+
+    public ArrayPostingsCursor( int[] docIDs ) {
+        this.docIDs = docIDs;
+    }
+
+    public ArrayPostingsCursor( int[] docIDs, int[] starts, int[] positions ) {
+        this.docIDs = docIDs;
+        this.starts = starts;
+        this.positions = positions;
+    }
+
+    public int docID() {
+        if (i < 0) return -1;
+        if (i >= docIDs.length) return NO_MORE_DOCS;
+        return docIDs[i];
+    }
+
+    public int nextDoc() {
+        if (i < docIDs.length) ++i;
+        return docID();
+    }
+
+    public int advance( int target ) {
+        if (i >= 0 && docID() >= target) return docID();
+        i = PostingsList.gallop(docIDs, Math.max(i, 0), target);
+        return docID();
+    }
+
+    public int freq() {
+        return positions == null ? 0 : starts[i + 1] - starts[i];
+    }
+
+    public ArrayList<Integer> positions() {
+        ArrayList<Integer> list = new ArrayList<>();
+        if (positions == null) return list;
+        for (int p = starts[i]; p < starts[i + 1]; ++p) {
+            list.add(positions[p]);
+        }
+        return list;
+    }
+
+    public int cost() {
+        return docIDs.length;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Runs a file of queries against an index without the GUI, and reports
+ *  how fast they were.
+ *
+ *      java ir.BatchRunner -queries file [-threads n] [-repeat r] [-warmup w]
+ *                          [-k k] [-trec file] [-runid name] [engine options]
+ *
+ *  The index is loaded as with "Engine -ni", and the engine options are
+ *  passed on to it. Every line of the query file is a query, as
+ *
+ *      id <tab> type <tab> ranking <tab> norm <tab> text
+ *
+ *  with the names of SearchServer, e.g. "7	ranked	tfidf	words	new york";
+ *  a line without tabs is a ranked tf-idf query numbered by its line, and
+ *  lines starting with # are skipped. Every query is first run warmup
+ *  times, which are not measured, and then repeat times on threads
+ *  threads. The report gives the throughput, the 50th, 95th and 99th
+ *  percentiles and the largest latency, overall and by query type, and
+ *  the numbers of results. With -trec, the top k results of every query
+ *  are written in the TREC run format, "id Q0 document rank score runid".
+ *
+ *  The result and pair caches of the searcher are off, as with "-rc 0
+ *  -ic 0", since the warm-up runs would otherwise leave every measured run
+ *  a cache hit; give -rc and -ic to measure the queries with the caches.
+ *  The postings cache stays on.
+ */
+public class BatchRunner {
+
+    /** A query of the file. */
+    static class BatchQuery {
+        String id;
+        QueryType queryType;
+        RankingType rankingType;
+        NormalizationType normalizationType;
+        String text;
+    }
+
+    ArrayList<BatchQuery> queries = new ArrayList<>();
+
+    Searcher searcher;
+
+    int threads = 1;
+    int repeat = 1;
+    int warmup = 1;
+    int k = 10;
+
+    /** The latencies of the measured runs, in nanoseconds, by run. */
+    private long[] latencies;
+
+    /** The number of results of every query, and its top k in the TREC format. */
+    private int[] results;
+    private String[] top;
+
+
+    public BatchRunner( Searcher searcher ) {
+        this.searcher = searcher;
+    }
+
+    /**
+     *  Reads the queries of a file.
+     */
+    public void readQueries( String fileName ) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                ++number;
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                BatchQuery query = new BatchQuery();
+                String[] fields = line.split("\t");
+                if (fields.length == 1) {
+                    query.id = Integer.toString(number);
+                    query.queryType = QueryType.RANKED_QUERY;
+                    query.rankingType = RankingType.TF_IDF;
+                    query.normalizationType = NormalizationType.NUMBER_OF_WORDS;
+                    query.text = line.trim();
+                } else if (fields.length == 5) {
+                    query.id = fields[0].trim();
+                    query.queryType = SearchServer.queryType(fields[1].trim());
+                    query.rankingType = SearchServer.rankingType(fields[2].trim());
+                    query.normalizationType = SearchServer.normalizationType(fields[3].trim());
+                    query.text = fields[4].trim();
+                } else {
+                    throw new IllegalArgumentException(fileName + ":" + number + ": expected 5 fields, found " + fields.length);
+                }
+                // the operators of a boolean query are in capitals, as in the GUI
+                if (query.queryType != QueryType.BOOLEAN_QUERY) query.text = query.text.toLowerCase();
+                queries.add(query);
+            }
+        }
+    }
+
+    /**
+     *  Runs the queries, first the warm-up runs and then the measured ones.
+     *
+     *  @return The wall-clock time of the measured runs, in nanoseconds.
+     */
+    public long run() throws InterruptedException {
+        int n = queries.size();
+        results = new int[n];
+        top = new String[n];
+        latencies = new long[n * repeat];
+        runAll(n * warmup, false);
+        long start = System.nanoTime();
+        runAll(n * repeat, true);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     *  Runs the queries round after round, runs times in all, on the
+     *  threads. The threads take the next run from a shared counter, so
+     *  they are kept busy whatever the queries cost.
+     */
+    private void runAll( int runs, boolean measured ) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            workers[t] = new Thread(() -> {
+                for (int r = next.getAndIncrement(); r < runs; r = next.getAndIncrement()) {
+                    int q = r % queries.size();
+                    BatchQuery query = queries.get(q);
+                    long start = System.nanoTime();
+                    IndexSnapshot snapshot = searcher.snapshot();
+                    ResultCache.Result answer = searcher.search(snapshot, new Query(query.text), query.queryType,
+                                                                query.rankingType, query.normalizationType, k);
+                    long elapsed = System.nanoTime() - start;
+                    if (!measured) continue;
+                    latencies[r] = elapsed;
+                    if (r < queries.size()) {
+                        results[q] = answer.total;
+                        top[q] = trec(snapshot, query, answer);
+                    }
+                }
+            }, "batch-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     *  The top k results of a query in the TREC run format. Queries that
+     *  are not ranked are scored by their order.
+     */
+    private String trec( IndexSnapshot snapshot, BatchQuery query, ResultCache.Result answer ) {
+        if (answer.docIDs == null) return "";
+        DocumentTable docTable = snapshot.index.docTable();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < answer.docIDs.length && i < k; ++i) {
+            String name = docTable.name(answer.docIDs[i]);
+            name = name == null ? Integer.toString(answer.docIDs[i]) : new File(name).getName();
+            double score = query.queryType == QueryType.RANKED_QUERY ? answer.scores[i] : k - i;
+            lines.append(query.id).append(" Q0 ").append(name).append(' ').append(i + 1).append(' ')
+                 .append(String.format(Locale.ROOT, "%.6f", score)).append(" %RUNID%\n");
+        }
+        return lines.toString();
+    }
+
+    public void writeTrec( String fileName, String runID ) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(fileName), StandardCharsets.UTF_8))) {
+            for (String lines : top) {
+                out.write(lines.replace("%RUNID%", runID));
+            }
+        }
+    }
+
+    /**
+     *  The p:th percentile of sorted latencies, by the nearest rank.
+     */
+    static long percentile( long[] sorted, double p ) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    static String latencyLine( String label, long[] latencies ) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "%-20s %8d %9.3f %9.3f %9.3f %9.3f", label, sorted.length,
+                             percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                             percentile(sorted, 99) / 1e6, sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    public void report( PrintStream out, long elapsed ) {
+        int runs = latencies.length;
+        out.println(String.format(Locale.ROOT, "%d queries, %d runs on %d threads in %.3f s: %.1f queries/s",
+                                  queries.size(), runs, threads, elapsed / 1e9, runs / (elapsed / 1e9)));
+        out.println(String.format(Locale.ROOT, "%-20s %8s %9s %9s %9s %9s", "latency (ms)", "runs", "p50", "p95", "p99", "max"));
+        out.println(latencyLine("all", latencies));
+        for (QueryType queryType : QueryType.values()) {
+            long[] byType = new long[runs];
+            int m = 0;
+            for (int r = 0; r < runs; ++r) {
+                if (queries.get(r % queries.size()).queryType == queryType) byType[m++] = latencies[r];
+            }
+            if (m > 0) out.println(latencyLine(queryType.toString(), Arrays.copyOf(byType, m)));
+        }
+        long total = 0;
+        int none = 0;
+        int most = 0;
+        for (int count : results) {
+            total += count;
+            if (count == 0) ++none;
+            most = Math.max(most, count);
+        }
+        out.println(String.format(Locale.ROOT, "results: %d in all, %.1f per query, at most %d, %d queries without any",
+                                  total, queries.isEmpty() ? 0 : (double) total / queries.size(), most, none));
+        Index index = searcher.snapshot().index;
+        if (index instanceof PersistentHashedIndex) {
+            out.println(((PersistentHashedIndex) index).getCache());
+            out.println("postings records read: " + ((PersistentHashedIndex) index).loads);
+        }
+        out.println(searcher.resultCache);
+        out.println(searcher.pairCache);
+        out.println("queries evaluated: " + searcher.searches);
+    }
+
+    public static void main( String[] args ) throws Exception {
+        String queryFile = null;
+        String trecFile = null;
+        String runID = "ir";
+        int threads = 1, repeat = 1, warmup = 1, k = 10;
+        // the query caches are off unless given again in the engine options
+        ArrayList<String> engineArgs = new ArrayList<>(Arrays.asList("-ni", "-nogui", "-rc", "0", "-ic", "0"));
+        for (int i = 0; i < args.length; ++i) {
+            if ("-queries".equals(args[i]) && i + 1 < args.length) {
+                queryFile = args[++i];
+            } else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-repeat".equals(args[i]) && i + 1 < args.length) {
+                repeat = Integer.parseInt(args[++i]);
+            } else if ("-warmup".equals(args[i]) && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-k".equals(args[i]) && i + 1 < args.length) {
+                k = Integer.parseInt(args[++i]);
+            } else if ("-trec".equals(args[i]) && i + 1 < args.length) {
+                trecFile = args[++i];
+            } else if ("-runid".equals(args[i]) && i + 1 < args.length) {
+                runID = args[++i];
+            } else {
+                engineArgs.add(args[i]);
+            }
+        }
+        if (queryFile == null) {
+            System.err.println("Usage: BatchRunner -queries file [-threads n] [-repeat r] [-warmup w] [-k k] [-trec file] [-runid name] [engine options]");
+            return;
+        }
+
+        Engine engine = new Engine(engineArgs.toArray(new String[0]));
+        BatchRunner runner = new BatchRunner(engine.searcher);
+        runner.threads = Math.max(1, threads);
+        runner.repeat = Math.max(1, repeat);
+        runner.warmup = Math.max(0, warmup);
+        runner.k = k;
+        runner.readQueries(queryFile);
+        long elapsed = runner.run();
+        runner.report(System.out, elapsed);
+        if (trecFile != null) runner.writeTrec(trecFile, runID);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  An auxiliary index of word pairs for phrase queries.
+ *
+ *  Every pair of consecutive words in a document gets a positional postings
+ *  list, the offsets being those of the second word. When indexing is done,
+ *  only the pairs of common words are kept: a phrase with a rare word is
+ *  already cheap to evaluate from the word lists, while "of the" or
+ *  "new york" means walking the offsets of two very long lists. The
+ *  Searcher then covers a phrase with the cheapest mix of pair and word
+ *  lists.
+ *
+ *  All pairs are kept in main memory until indexing is done, so this index
+ *  roughly doubles the memory needed while indexing.
+ */
+public class BiwordIndex {
+
+    /** The biwords file name */
+    public static final String BIWORDS_FNAME = "biwords";
+
+    /** The biword positions file name */
+    public static final String POSITIONS_FNAME = "biword_positions";
+
+    /**
+     *  Pairs are kept when both words occur in at least this fraction of
+     *  the documents. main() compares phrase queries with and without the
+     *  pairs.
+     */
+    public static final double COMMON_FRACTION = 1. / 64;
+
+    /** The directory of the persistent index, null for a main-memory index. */
+    String dir;
+
+    /** The pairs, keyed by "first second". */
+    HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+    /** The offsets of the pairs read from disk. */
+    PositionsFile positions;
+
+    /** For every word, its document frequency and the last document it was seen in. */
+    private HashMap<String,int[]> wordStats = new HashMap<String,int[]>();
+
+    /** The previous token inserted, and where. */
+    private String lastToken;
+    private int lastDocID = -1;
+    private int lastOffset = -1;
+
+
+    public BiwordIndex( String dir ) {
+        this.dir = dir;
+    }
+
+    private void openPositions() {
+        if (positions == null) {
+            positions = new PositionsFile( dir + "/" + POSITIONS_FNAME );
+        }
+    }
+
+    /**
+     *  Inserts the next token of a document. Tokens must come in the order
+     *  of the documents.
+     */
+    public void insert( String token, int docID, int offset ) {
+        int[] stats = wordStats.get(token);
+        if (stats == null) {
+            wordStats.put(token, new int[]{1, docID});
+        } else if (stats[1] != docID) {
+            ++stats[0];
+            stats[1] = docID;
+        }
+
+        if (lastToken != null && lastDocID == docID && lastOffset == offset - 1) {
+            String pair = lastToken + " " + token;
+            PostingsList postingsList = index.get(pair);
+            if (postingsList == null) {
+                postingsList = new PostingsList();
+                index.put(pair, postingsList);
+            }
+            postingsList.addEntry(docID, offset);
+        }
+        lastToken = token;
+        lastDocID = docID;
+        lastOffset = offset;
+    }
+
+    /**
+     *  Drops the pairs with a word occurring in fewer than COMMON_FRACTION
+     *  of the <code>numberOfDocs</code> documents. Called once indexing is done.
+     */
+    public void prune( int numberOfDocs ) {
+        double minDf = COMMON_FRACTION * numberOfDocs;
+        Iterator<String> pairs = index.keySet().iterator();
+        while (pairs.hasNext()) {
+            String[] words = pairs.next().split(" ");
+            if (wordStats.get(words[0])[0] < minDf || wordStats.get(words[1])[0] < minDf) {
+                pairs.remove();
+            }
+        }
+        wordStats.clear();
+        lastToken = null;
+        System.err.println( index.size() + " biwords kept" );
+    }
+
+    /**
+     *  Returns the postings of a pair of words, the offsets being those of
+     *  the second word, or null if the pair is not in the index.
+     */
+    public PostingsList getPostings( String first, String second ) {
+        return index.get(first + " " + second);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     *  Writes the pairs of a persistent index to disk, the postings to the
+     *  biwords file and their offsets to the positions file.
+     */
+    public void writeIndex() {
+        if (dir == null) return;
+        openPositions();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream( dir + "/" + BIWORDS_FNAME )))) {
+            positions.clear();
+            out.writeInt(index.size());
+            for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                byte[] data = entry.getValue().encode(positions).getBytes();
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            positions.flush();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Reads the pairs of a persistent index. The postings are decoded
+     *  when first used, and their offsets read from the positions file.
+     *
+     *  @return false if there is no biwords file.
+     */
+    public boolean readIndex() {
+        if (dir == null || !new File( dir + "/" + BIWORDS_FNAME ).exists()) return false;
+        index.clear();
+        openPositions();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream( dir + "/" + BIWORDS_FNAME )))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; ++i) {
+                String pair = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                index.put(pair, new PostingsList(new String(data), positions));
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Renumbers the documents, see Index.remapDocIDs, and writes the
+     *  pairs to disk again.
+     */
+    public void remapDocIDs( int[] newID ) {
+        for (PostingsList postingsList : index.values()) {
+            postingsList.loadPositions();
+            postingsList.remapDocIDs(newID);
+        }
+        writeIndex();
+    }
+
+
+    // ==================================================================
+
+    /**
+     *  Compares phrase queries with and without the pairs on a main-memory
+     *  index of a directory. Usage: BiwordIndex dir [patterns_file] [phrase...]
+     */
+    public static void main( String[] args ) {
+        if (args.length < 1) {
+            System.err.println("Usage: BiwordIndex dir [patterns_file] [phrase...]");
+            return;
+        }
+        String patterns_file = args.length > 1 ? args[1] : null;
+        ArrayList<String> phrases = new ArrayList<>();
+        for (int i = 2; i < args.length; ++i) {
+            phrases.add(args[i]);
+        }
+        if (phrases.isEmpty()) {
+            phrases.addAll(Arrays.asList("of the", "in the", "new york", "one of the",
+                    "the city of", "is one of the", "at the end of the"));
+        }
+
+        HashedIndex index = new HashedIndex();
+        BiwordIndex biwordIndex = new BiwordIndex(null);
+        Indexer indexer = new Indexer(index, null, patterns_file);
+        indexer.biwordIndex = biwordIndex;
+        indexer.processFiles(new File(args[0]), true);
+        biwordIndex.prune(index.docTable().size());
+
+        Searcher searcher = new Searcher(index, null);
+        int rounds = 50;
+        System.err.println("phrase                  results   words(us)   biwords(us)");
+        for (String phrase : phrases) {
+            long[] elapsed = new long[2];
+            int[] results = new int[2];
+            // the first pass only warms up the JIT
+            for (int pass = 0; pass < 2; ++pass) {
+                for (int withBiwords = 0; withBiwords < 2; ++withBiwords) {
+                    searcher.publish(new IndexSnapshot(index, withBiwords == 1 ? biwordIndex : null, null, false));
+                    long start = System.nanoTime();
+                    for (int r = 0; r < rounds; ++r) {
+                        PostingsList answer = searcher.search(new Query(phrase), QueryType.PHRASE_QUERY,
+                                RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+                        results[withBiwords] = answer == null ? 0 : answer.size();
+                    }
+                    elapsed[withBiwords] = System.nanoTime() - start;
+                }
+            }
+            if (results[0] != results[1]) {
+                System.err.println("Different results for \"" + phrase + "\": " + results[0] + " and " + results[1]);
+            }
+            System.err.println(String.format("%-22s %8d %11.1f %13.1f", phrase, results[1],
+                    elapsed[0] / 1000. / rounds, elapsed[1] / 1000. / rounds));
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+
+/**
+ *  A boolean query, e.g. <code>(wage OR salar*) AND "new york" NOT intern</code>.
+ *
+ *  The operators are AND, OR and NOT in capitals, AND being implicit
+ *  between two clauses. NOT binds tighter than AND, and AND tighter than
+ *  OR. A clause is a word, a word with '*' wildcards (expanded with the
+ *  k-gram index), a phrase in double quotes or a query in parentheses:
+ *
+ *    or     := and ( OR and )*
+ *    and    := not ( [AND] not )*
+ *    not    := NOT not | clause
+ *    clause := ( or ) | "word ..." | word
+ *
+ *  plan() turns the parsed query into a tree of cursors, which is then
+ *  walked once without collecting anything on the way. The number of
+ *  documents of a term is known as soon as its cursor is opened, from the
+ *  dictionary and the header of its postings, before any of them is read.
+ *  In a conjunction the planner
+ *  - opens the terms before the other clauses, and stops at the first
+ *    clause without documents without opening the others,
+ *  - ANDs the doc sets of the dense terms 64 documents at a time (see
+ *    RoaringDocSet),
+ *  - orders the clauses from the rarest to the most frequent, the rarest
+ *    one leading,
+ *  - and merges a clause with the leading one, stepping with nextDoc(),
+ *    when it has at most MERGE_RATIO times its documents, and gallops
+ *    with advance() otherwise.
+ *  A negated clause in a conjunction only filters its documents. Elsewhere
+ *  it is the complement of the clause in the collection.
+ */
+public class BooleanQuery {
+
+    /** A clause with up to this many times the documents of the leading one is merged. */
+    static final int MERGE_RATIO = 4;
+
+    /** The root of the parsed query. */
+    private Node root;
+
+    /** The tokens of the query, and the next one to parse. */
+    private ArrayList<String> tokens = new ArrayList<>();
+    private int next = 0;
+
+    /** The searcher the query is planned for, and the indexes it searches. */
+    private Searcher searcher;
+    private IndexSnapshot snapshot;
+
+    /** The last plan, one line per clause, see explain(). */
+    private StringBuilder plan = new StringBuilder();
+
+    /**
+     *  Parses a boolean query.
+     *
+     *  @throws IllegalArgumentException if the query is malformed.
+     */
+    public BooleanQuery( String text ) {
+        tokenize(text);
+        if (tokens.isEmpty()) throw new IllegalArgumentException("empty query");
+        root = parseOr();
+        if (next < tokens.size()) throw new IllegalArgumentException("unexpected " + tokens.get(next));
+    }
+
+    public static BooleanQuery parse( String text ) {
+        return new BooleanQuery(text);
+    }
+
+    /**
+     *  Opens the cursors of the query, or returns null when no document can
+     *  match it.
+     */
+    public PostingsCursor plan( Searcher searcher, IndexSnapshot snapshot ) {
+        this.searcher = searcher;
+        this.snapshot = snapshot;
+        plan.setLength(0);
+        return root.plan(0);
+    }
+
+    /** The last plan, as an indented tree of the clauses with their number of documents. */
+    public String explain() {
+        return plan.toString();
+    }
+
+    public String toString() {
+        return root.toString();
+    }
+
+    private void note( int at, int depth, String line ) {
+        StringBuilder indented = new StringBuilder();
+        for (int i = 0; i < depth; ++i) {
+            indented.append("  ");
+        }
+        plan.insert(at, indented.append(line).append('\n'));
+    }
+
+
+    // ==================================================================
+    //
+    //  Parsing.
+    //
+
+    /**
+     *  Splits the query into parentheses, phrases and words. A phrase token
+     *  keeps its opening quote.
+     */
+    private void tokenize( String text ) {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                ++i;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                ++i;
+            } else if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                if (end < 0) throw new IllegalArgumentException("missing \"");
+                tokens.add(text.substring(i, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()\"".indexOf(text.charAt(i)) < 0) {
+                    ++i;
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+    }
+
+    private boolean accept( String token ) {
+        if (next < tokens.size() && tokens.get(next).equals(token)) {
+            ++next;
+            return true;
+        }
+        return false;
+    }
+
+    private Node parseOr() {
+        ArrayList<Node> clauses = new ArrayList<>();
+        clauses.add(parseAnd());
+        while (accept("OR")) {
+            clauses.add(parseAnd());
+        }
+        return clauses.size() == 1 ? clauses.get(0) : new Or(clauses);
+    }
+
+    private Node parseAnd() {
+        ArrayList<Node> clauses = new ArrayList<>();
+        clauses.add(parseNot());
+        while (next < tokens.size() && !tokens.get(next).equals("OR") && !tokens.get(next).equals(")")) {
+            accept("AND");
+            clauses.add(parseNot());
+        }
+        return clauses.size() == 1 ? clauses.get(0) : new And(clauses);
+    }
+
+    private Node parseNot() {
+        if (accept("NOT")) return new Not(parseNot());
+        return parseClause();
+    }
+
+    private Node parseClause() {
+        if (next == tokens.size()) throw new IllegalArgumentException("missing clause at the end");
+        String token = tokens.get(next++);
+        if (token.equals("(")) {
+            Node clause = parseOr();
+            if (!accept(")")) throw new IllegalArgumentException("missing )");
+            return clause;
+        }
+        if (token.equals(")") || token.equals("AND") || token.equals("OR")) {
+            throw new IllegalArgumentException("unexpected " + token);
+        }
+        if (token.startsWith("\"")) {
+            ArrayList<String> words = new ArrayList<>();
+            for (String word : token.substring(1).split("\\s+")) {
+                if (!word.isEmpty()) words.add(word.toLowerCase());
+            }
+            if (words.isEmpty()) throw new IllegalArgumentException("empty phrase");
+            return words.size() == 1 ? new Term(words.get(0)) : new Phrase(words);
+        }
+        token = token.toLowerCase();
+        if (token.contains("*")) return new Wildcard(token);
+        return new Term(token);
+    }
+
+
+    // ==================================================================
+    //
+    //  The clauses and their plans.
+    //
+
+    private abstract class Node {
+        /**
+         *  Opens the cursors of the clause, or returns null when no document
+         *  can match it.
+         */
+        abstract PostingsCursor plan( int depth );
+    }
+
+    private class Term extends Node {
+        String term;
+
+        Term( String term ) {
+            this.term = term;
+        }
+
+        PostingsCursor plan( int depth ) {
+            PostingsCursor cursor = snapshot.index.getCursor(term);
+            note(plan.length(), depth, term + " " + (cursor == null ? 0 : cursor.cost()));
+            return cursor;
+        }
+
+        public String toString() {
+            return term;
+        }
+    }
+
+    private class Phrase extends Node {
+        ArrayList<String> words;
+
+        Phrase( ArrayList<String> words ) {
+            this.words = words;
+        }
+
+        PostingsCursor plan( int depth ) {
+            PostingsCursor cursor = searcher.phraseCursor(snapshot, words);
+            note(plan.length(), depth, this + " " + (cursor == null ? 0 : "<=" + cursor.cost()));
+            return cursor;
+        }
+
+        public String toString() {
+            return "\"" + String.join(" ", words) + "\"";
+        }
+    }
+
+    private class Wildcard extends Node {
+        String pattern;
+
+        Wildcard( String pattern ) {
+            this.pattern = pattern;
+        }
+
+        PostingsCursor plan( int depth ) {
+            ArrayList<PostingsCursor> cursors = new ArrayList<>();
+            if (searcher.kgIndex != null) {
+                for (String token : searcher.kgIndex.wildcard(pattern)) {
+                    PostingsCursor cursor = snapshot.index.getCursor(token);
+                    if (cursor != null) cursors.add(cursor);
+                }
+            }
+            PostingsCursor cursor = union(cursors);
+            note(plan.length(), depth, pattern + " " + cursors.size() + " terms " + (cursor == null ? 0 : cursor.cost()));
+            return cursor;
+        }
+
+        public String toString() {
+            return pattern;
+        }
+    }
+
+    private class Not extends Node {
+        Node clause;
+
+        Not( Node clause ) {
+            this.clause = clause;
+        }
+
+        /** The documents not matching the clause, out of a conjunction. */
+        PostingsCursor plan( int depth ) {
+            int at = plan.length();
+            PostingsCursor excluded = clause.plan(depth + 1);
+            PostingsCursor cursor = new AndCursor(new PostingsCursor[]{allDocuments()}, new boolean[1],
+                    excluded == null ? new PostingsCursor[0] : new PostingsCursor[]{excluded});
+            note(at, depth, "NOT (all documents) " + cursor.cost());
+            return cursor;
+        }
+
+        public String toString() {
+            return "NOT " + clause;
+        }
+    }
+
+    private class Or extends Node {
+        ArrayList<Node> clauses;
+
+        Or( ArrayList<Node> clauses ) {
+            this.clauses = clauses;
+        }
+
+        PostingsCursor plan( int depth ) {
+            int at = plan.length();
+            ArrayList<PostingsCursor> cursors = new ArrayList<>();
+            for (Node clause : clauses) {
+                PostingsCursor cursor = clause.plan(depth + 1);
+                if (cursor != null) cursors.add(cursor);
+            }
+            PostingsCursor cursor = union(cursors);
+            note(at, depth, "OR " + (cursor == null ? 0 : "<=" + cursor.cost()));
+            return cursor;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder("(");
+            for (Node clause : clauses) {
+                if (s.length() > 1) s.append(" OR ");
+                s.append(clause);
+            }
+            return s.append(")").toString();
+        }
+    }
+
+    private class And extends Node {
+        ArrayList<Node> clauses;
+
+        And( ArrayList<Node> clauses ) {
+            this.clauses = clauses;
+        }
+
+        PostingsCursor plan( int depth ) {
+            int at = plan.length();
+            ArrayList<Node> required = new ArrayList<>();
+            ArrayList<Node> negated = new ArrayList<>();
+            for (Node clause : clauses) {
+                if (clause instanceof Not) negated.add(((Not) clause).clause);
+                else required.add(clause);
+            }
+            // only negations: the complement of their union
+            if (required.isEmpty()) return new Not(new Or(negated)).plan(depth);
+
+            // the terms are the cheapest clauses to open, and the likeliest to be empty
+            ArrayList<Node> ordered = new ArrayList<>();
+            for (Node clause : required) {
+                if (clause instanceof Term) ordered.add(clause);
+            }
+            for (Node clause : required) {
+                if (!(clause instanceof Term)) ordered.add(clause);
+            }
+
+            // the dense terms are intersected on their doc sets
+            ArrayList<PostingsCursor> cursors = new ArrayList<>();
+            ArrayList<String> dense = new ArrayList<>();
+            RoaringDocSet docSet = null;
+            for (Node clause : ordered) {
+                if (!(clause instanceof Term)) continue;
+                RoaringDocSet termDocSet = snapshot.index.getDocSet(((Term) clause).term);
+                if (termDocSet == null) continue;
+                dense.add(((Term) clause).term);
+                docSet = docSet == null ? termDocSet : docSet.and(termDocSet);
+            }
+            if (dense.size() > 1) {
+                note(plan.length(), depth + 1, "bitmap " + dense + " " + docSet.cardinality());
+                if (docSet.cardinality() == 0) {
+                    note(at, depth, "AND 0");
+                    return null;
+                }
+                cursors.add(new ArrayPostingsCursor(docSet.toArray()));
+            } else {
+                dense.clear();
+            }
+
+            for (Node clause : ordered) {
+                if (clause instanceof Term && dense.contains(((Term) clause).term)) continue;
+                PostingsCursor cursor = clause.plan(depth + 1);
+                if (cursor == null) {
+                    note(at, depth, "AND 0, stopped at " + clause);
+                    return null;
+                }
+                cursors.add(cursor);
+            }
+
+            ArrayList<PostingsCursor> excluded = new ArrayList<>();
+            for (Node clause : negated) {
+                int notAt = plan.length();
+                PostingsCursor cursor = clause.plan(depth + 2);
+                note(notAt, depth + 1, "NOT");
+                if (cursor != null) excluded.add(cursor);
+            }
+
+            if (cursors.size() == 1 && excluded.isEmpty()) {
+                note(at, depth, "AND " + cursors.get(0).cost());
+                return cursors.get(0);
+            }
+            Collections.sort(cursors, (c1, c2) -> Integer.compare(c1.cost(), c2.cost()));
+            boolean[] gallop = new boolean[cursors.size()];
+            StringBuilder steps = new StringBuilder();
+            for (int c = 1; c < cursors.size(); ++c) {
+                gallop[c] = cursors.get(c).cost() > (long) MERGE_RATIO * cursors.get(0).cost();
+                steps.append(gallop[c] ? " gallop" : " merge");
+            }
+            PostingsCursor cursor = new AndCursor(cursors.toArray(new PostingsCursor[0]), gallop,
+                    excluded.toArray(new PostingsCursor[0]));
+            note(at, depth, "AND <=" + cursor.cost() + ", lead" + steps);
+            return cursor;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder("(");
+            for (Node clause : clauses) {
+                if (s.length() > 1) s.append(" AND ");
+                s.append(clause);
+            }
+            return s.append(")").toString();
+        }
+    }
+
+    private PostingsCursor union( ArrayList<PostingsCursor> cursors ) {
+        if (cursors.isEmpty()) return null;
+        if (cursors.size() == 1) return cursors.get(0);
+        return new OrCursor(cursors);
+    }
+
+    private PostingsCursor allDocuments() {
+        DocumentTable docTable = snapshot.index.docTable();
+        int[] docIDs = new int[docTable.size()];
+        int n = 0;
+        for (int docID = 0; docID < docIDs.length; ++docID) {
+            if (docTable.name(docID) != null) docIDs[n++] = docID;
+        }
+        if (n < docIDs.length) docIDs = Arrays.copyOf(docIDs, n);
+        return new ArrayPostingsCursor(docIDs);
+    }
+
+
+    // ==================================================================
+    //
+    //  The cursors of the plan.
+    //
+
+    /**
+     *  The documents of all required cursors and of none of the excluded
+     *  ones. The first required cursor leads; the others move to its
+     *  documents with nextDoc() or advance(), see MERGE_RATIO.
+     */
+    static class AndCursor implements PostingsCursor {
+        private PostingsCursor[] required;
+        private boolean[] gallop;
+        private PostingsCursor[] excluded;
+        private int docID = -1;
+
+        AndCursor( PostingsCursor[] required, boolean[] gallop, PostingsCursor[] excluded ) {
+            this.required = required;
+            this.gallop = gallop;
+            this.excluded = excluded;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            return match(required[0].nextDoc());
+        }
+
+        public int advance( int target ) {
+            if (docID >= target) return docID;
+            return match(required[0].advance(target));
+        }
+
+        /** The first match from <code>target</code> on, the lead being there. */
+        private int match( int target ) {
+            while (target != NO_MORE_DOCS) {
+                int d = target;
+                for (int c = 1; c < required.length && d == target; ++c) {
+                    d = move(c, target);
+                }
+                if (d == target) {
+                    if (!isExcluded(target)) {
+                        docID = target;
+                        return docID;
+                    }
+                    target = required[0].nextDoc();
+                } else {
+                    target = required[0].advance(d);
+                }
+            }
+            docID = NO_MORE_DOCS;
+            return docID;
+        }
+
+        private int move( int c, int target ) {
+            if (gallop[c]) return required[c].advance(target);
+            int d = required[c].docID();
+            while (d < target) {
+                d = required[c].nextDoc();
+            }
+            return d;
+        }
+
+        private boolean isExcluded( int target ) {
+            for (PostingsCursor cursor : excluded) {
+                if (cursor.advance(target) == target) return true;
+            }
+            return false;
+        }
+
+        public int freq() {
+            int freq = 0;
+            for (PostingsCursor cursor : required) {
+                freq += cursor.freq();
+            }
+            return freq;
+        }
+
+        /** The positions of all required clauses in the current document. */
+        public ArrayList<Integer> positions() {
+            ArrayList<Integer> positions = new ArrayList<>();
+            for (PostingsCursor cursor : required) {
+                positions.addAll(cursor.positions());
+            }
+            Collections.sort(positions);
+            return positions;
+        }
+
+        public int cost() {
+            return required[0].cost();
+        }
+    }
+
+    /**
+     *  The documents of at least one of the cursors, merged on a heap of
+     *  their docIDs.
+     */
+    static class OrCursor implements PostingsCursor {
+        private ArrayList<PostingsCursor> cursors;
+        private PriorityQueue<PostingsCursor> heads =
+                new PriorityQueue<>((c1, c2) -> Integer.compare(c1.docID(), c2.docID()));
+        private boolean started = false;
+        private int docID = -1;
+
+        OrCursor( ArrayList<PostingsCursor> cursors ) {
+            this.cursors = cursors;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int nextDoc() {
+            if (!started) return advance(0);
+            while (!heads.isEmpty() && heads.peek().docID() == docID) {
+                PostingsCursor cursor = heads.poll();
+                if (cursor.nextDoc() != NO_MORE_DOCS) heads.add(cursor);
+            }
+            docID = heads.isEmpty() ? NO_MORE_DOCS : heads.peek().docID();
+            return docID;
+        }
+
+        public int advance( int target ) {
+            if (!started) {
+                started = true;
+                for (PostingsCursor cursor : cursors) {
+                    if (cursor.advance(target) != NO_MORE_DOCS) heads.add(cursor);
+                }
+            } else {
+                if (docID >= target) return docID;
+                while (!heads.isEmpty() && heads.peek().docID() < target) {
+                    PostingsCursor cursor = heads.poll();
+                    if (cursor.advance(target) != NO_MORE_DOCS) heads.add(cursor);
+                }
+            }
+            docID = heads.isEmpty() ? NO_MORE_DOCS : heads.peek().docID();
+            return docID;
+        }
+
+        public int freq() {
+            int freq = 0;
+            for (PostingsCursor cursor : heads) {
+                if (cursor.docID() == docID) freq += cursor.freq();
+            }
+            return freq;
+        }
+
+        /** The positions of the clauses matching the current document. */
+        public ArrayList<Integer> positions() {
+            ArrayList<Integer> positions = new ArrayList<>();
+            for (PostingsCursor cursor : heads) {
+                if (cursor.docID() == docID) positions.addAll(cursor.positions());
+            }
+            Collections.sort(positions);
+            return positions;
+        }
+
+        public int cost() {
+            long cost = 0;
+            for (PostingsCursor cursor : cursors) {
+                cost += cursor.cost();
+            }
+            return (int) Math.min(cost, Integer.MAX_VALUE - 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+/**
+ *  Moves a set of cursors together over the documents they all contain.
+ *
+ *  The cursor with the fewest documents leads: every document it moves to
+ *  is a candidate, and the other cursors gallop to it with advance(). A
+ *  cursor ahead of the candidate makes its document the new candidate.
+ */
+public class Conjunction {
+
+    /** The cursors, by increasing number of documents. */
+    private PostingsCursor[] cursors;
+
+    private int docID = -1;
+
+    public Conjunction( PostingsCursor[] cursors ) {
+        this.cursors = cursors.clone();
+        Arrays.sort(this.cursors, (c1, c2) -> Integer.compare(c1.cost(), c2.cost()));
+    }
+
+    /**
+     *  Moves all cursors to the next document they share, and returns its
+     *  docID, or PostingsCursor.NO_MORE_DOCS.
+     */
+    public int nextDoc() {
+        docID = align(cursors[0].nextDoc());
+        return docID;
+    }
+
+    /**
+     *  Moves all cursors to the first document they share at or after
+     *  <code>target</code>, staying on the current one if it is already there.
+     */
+    public int advance( int target ) {
+        if (docID >= target) return docID;
+        docID = align(cursors[0].advance(target));
+        return docID;
+    }
+
+    /**
+     *  The first document from <code>target</code> on shared by all cursors,
+     *  the first cursor being at <code>target</code>.
+     */
+    private int align( int target ) {
+        int agreeing = 1;
+        int c = 1;
+        while (target != PostingsCursor.NO_MORE_DOCS && agreeing < cursors.length) {
+            int d = cursors[c].advance(target);
+            if (d == target) {
+                ++agreeing;
+            } else {
+                target = d;
+                agreeing = 1;
+            }
+            c = (c + 1) % cursors.length;
+        }
+        return target;
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    /** The number of documents of the rarest cursor, an upper bound of the result. */
+    public int cost() {
+        return cursors[0].cost();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  A cursor reading a postings record of a persistent index straight
+ *  from the data file.
+ *
+ *  Opening the cursor only reads the skip header of the record (see
+ *  PostingsList.encode). A block of BLOCK_SIZE postings is read and
+ *  decoded the first time the cursor enters it, and advance() skips the
+ *  blocks in between on their last docID without reading them. The
+ *  positions of a document are read from the positions file when asked
+ *  for. prefetch() reads the first block ahead, e.g. on another thread
+ *  while the cursors of the other terms of a query are opened.
+ *
+ *  A cursor can also read a record held in memory, see PostingsCache;
+ *  its offsets are then into the record instead of the data file.
+ */
+public class DiskPostingsCursor implements PostingsCursor {
+
+    /** The header is first looked for in this many bytes. */
+    static final int HEADER_READ = 256;
+
+    private RandomAccessFile file;
+    private PositionsFile positions;
+
+    /** The record, if it is read from memory rather than the file. */
+    private byte[] record;
+
+    /** Where the record and its entries start, and where it ends, in the file or the record. */
+    private long recordStart;
+    private long entriesStart;
+    private long end;
+
+    private int df;
+    private int[] blockLastDocID;
+    private int[] blockStart;
+    private long[] blockPositionsPtr;
+
+    /** The block decoded, -1 before the first. */
+    private int block = -1;
+    private int[] docIDs;
+    private int[] tfs;
+    private long[] positionsPtrs;
+
+    /** Position of the current document in the block. */
+    private int i = -1;
+
+    /** False until the first call to nextDoc() or advance(). */
+    private boolean started = false;
+
+    private boolean exhausted = false;
+
+    /** The positions of the current document, once read. */
+    private ArrayList<Integer> currentPositions;
+
+    /**
+     *  Opens a cursor on the record of <code>length</code> bytes starting at
+     *  <code>ptr</code>, i.e. "token*header|entries".
+     *
+     *  @return null if the record is not the one of <code>token</code>.
+     */
+    static DiskPostingsCursor open( RandomAccessFile file, long ptr, int length, String token, PositionsFile positions ) throws IOException {
+        byte[] key = (token + "*").getBytes();
+        if (key.length > length) return null;
+        byte[] data = read(file, ptr, key.length);
+        for (int k = 0; k < key.length; ++k) {
+            if (data[k] != key[k]) return null;
+        }
+        return new DiskPostingsCursor(file, null, ptr, ptr + key.length, ptr + length, positions);
+    }
+
+    /**
+     *  Opens a cursor on a record read into memory.
+     *
+     *  @return null if the record is not the one of <code>token</code>.
+     */
+    static DiskPostingsCursor open( byte[] record, String token, PositionsFile positions ) throws IOException {
+        byte[] key = (token + "*").getBytes();
+        if (key.length > record.length) return null;
+        for (int k = 0; k < key.length; ++k) {
+            if (record[k] != key[k]) return null;
+        }
+        return new DiskPostingsCursor(null, record, 0, key.length, record.length, positions);
+    }
+
+    private DiskPostingsCursor( RandomAccessFile file, byte[] record, long recordStart, long start, long end,
+                                PositionsFile positions ) throws IOException {
+        this.file = file;
+        this.record = record;
+        this.recordStart = recordStart;
+        this.end = end;
+        this.positions = positions;
+
+        // the header ends at the first '|'
+        int size = (int) Math.min(HEADER_READ, end - start);
+        String header;
+        while (true) {
+            String data = new String(read(start, size));
+            int sep = data.indexOf('|');
+            if (sep >= 0) {
+                header = data.substring(0, sep);
+                break;
+            }
+            if (size == end - start) throw new IOException("No postings header at " + start);
+            size = (int) Math.min(2L * size, end - start);
+        }
+        entriesStart = start + header.length() + 1;
+
+        String[] parts = header.split(";");
+        df = Integer.parseInt(parts[0]);
+        int blocks = (df + PostingsList.BLOCK_SIZE - 1) / PostingsList.BLOCK_SIZE;
+        blockLastDocID = new int[blocks];
+        blockStart = new int[blocks];
+        blockPositionsPtr = new long[blocks];
+        if (blocks > 0) {
+            String[] skips = parts[1].split(",");
+            for (int b = 0; b < blocks; ++b) {
+                String[] skip = skips[b].split("@");
+                blockLastDocID[b] = Integer.parseInt(skip[0]);
+                blockStart[b] = Integer.parseInt(skip[1]);
+                blockPositionsPtr[b] = Long.parseLong(skip[2]);
+            }
+        } else {
+            exhausted = true;
+        }
+    }
+
+    private static byte[] read( RandomAccessFile file, long ptr, int size ) throws IOException {
+        byte[] data = new byte[size];
+        PositionsFile.readAt(file, ptr, data);
+        return data;
+    }
+
+    private byte[] read( long ptr, int size ) throws IOException {
+        if (record != null) return Arrays.copyOfRange(record, (int) ptr, (int) ptr + size);
+        return read(file, ptr, size);
+    }
+
+    /** The length of the whole record, in bytes. */
+    int recordLength() {
+        return (int) (end - recordStart);
+    }
+
+    /**
+     *  Reads the whole record, e.g. to cache it.
+     */
+    byte[] readRecord() throws IOException {
+        return read(recordStart, recordLength());
+    }
+
+    /**
+     *  Reads and decodes a block of "docID:tf" entries.
+     */
+    private void loadBlock( int b ) {
+        long from = entriesStart + blockStart[b];
+        long to = b + 1 < blockStart.length ? entriesStart + blockStart[b + 1] - 1 : end;
+        try {
+            String[] entries = new String(read(from, (int) (to - from))).split("-");
+            docIDs = new int[entries.length];
+            tfs = new int[entries.length];
+            positionsPtrs = new long[entries.length];
+            long positionsPtr = blockPositionsPtr[b];
+            for (int k = 0; k < entries.length; ++k) {
+                int sep = entries[k].indexOf(':');
+                docIDs[k] = Integer.parseInt(entries[k].substring(0, sep));
+                tfs[k] = Integer.parseInt(entries[k].substring(sep + 1));
+                positionsPtrs[k] = positionsPtr;
+                positionsPtr += 4L * tfs[k];
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            exhausted = true;
+        }
+        block = b;
+    }
+
+    /**
+     *  Reads and decodes the first block, without moving the cursor.
+     */
+    void prefetch() {
+        if (!started && block < 0 && !exhausted) loadBlock(0);
+    }
+
+    public int docID() {
+        if (exhausted) return NO_MORE_DOCS;
+        if (!started) return -1;
+        return docIDs[i];
+    }
+
+    public int nextDoc() {
+        if (exhausted) return NO_MORE_DOCS;
+        currentPositions = null;
+        if (!started) {
+            started = true;
+            if (block < 0) loadBlock(0);
+            i = 0;
+        } else if (i + 1 == docIDs.length) {
+            if (block + 1 == blockLastDocID.length) {
+                exhausted = true;
+                return NO_MORE_DOCS;
+            }
+            loadBlock(block + 1);
+            i = 0;
+        } else {
+            ++i;
+        }
+        return docID();
+    }
+
+    public int advance( int target ) {
+        if (exhausted) return NO_MORE_DOCS;
+        if (started && docIDs[i] >= target) return docIDs[i];
+        currentPositions = null;
+        if (!started) {
+            started = true;
+            i = 0;
+        }
+        int b = PostingsList.gallop(blockLastDocID, Math.max(block, 0), target);
+        if (b == blockLastDocID.length) {
+            exhausted = true;
+            return NO_MORE_DOCS;
+        }
+        if (b != block) {
+            loadBlock(b);
+            i = 0;
+        }
+        i = PostingsList.gallop(docIDs, i, target);
+        return docID();
+    }
+
+    public int freq() {
+        return tfs[i];
+    }
+
+    public ArrayList<Integer> positions() {
+        if (currentPositions == null) {
+            currentPositions = positions.read(positionsPtrs[i], tfs[i]);
+        }
+        return currentPositions;
+    }
+
+    public int cost() {
+        return df;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ *  Renumbers the documents of an index.
+ *
+ *  A renumbering is given as an array <code>newID</code> indexed by the
+ *  old docID. The postings and the document table are rewritten under the
+ *  new numbering by the index itself (see <code>Index.remapDocIDs</code>).
+ */
+public class DocReordering {
+
+    /** Number of hash functions in the MinHash signature of a document. */
+    static final int MINHASH_SIZE = 4;
+
+    /** Seeds of the MinHash hash functions. */
+    static final int[] SEEDS = { 0x9e3779b1, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+    /**
+     *  Sizes of the docID gaps of a whole index, under Elias gamma and
+     *  variable-byte coding of the gaps.
+     */
+    static class GapStats {
+        long postings = 0;
+        long gammaBits = 0;
+        long vbyteBits = 0;
+
+        void add(PostingsList postingsList) {
+            int lastDocID = -1;
+            for (PostingsEntry postingsEntry : postingsList.getList()) {
+                int gap = postingsEntry.docID - lastDocID;
+                int bits = 32 - Integer.numberOfLeadingZeros(gap);
+                gammaBits += 2 * bits - 1;
+                vbyteBits += 8 * ((bits + 6) / 7);
+                lastDocID = postingsEntry.docID;
+                ++postings;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d postings, %.2f bits/posting (gamma), %.2f bits/posting (vbyte)",
+                    postings, (double) gammaBits / postings, (double) vbyteBits / postings);
+        }
+    }
+
+    /**
+     *  Computes a renumbering where documents come in descending pagerank
+     *  order. Documents without a pagerank are put last, in their original
+     *  order.
+     */
+    public static int[] byPageRank(DocumentTable docTable) {
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int docID = 0; docID < docTable.size(); ++docID) {
+            order.add(docID);
+        }
+        // stable sort, so ties keep their original relative order
+        order.sort((d1, d2) -> Double.compare(docTable.pageRank(d2), docTable.pageRank(d1)));
+        return fromOrder(order);
+    }
+
+    /**
+     *  Computes a renumbering where similar documents get close docIDs, so
+     *  that the gaps in the postings get smaller. Every document gets a
+     *  MinHash signature over its terms, and the documents are sorted by
+     *  signature: documents sharing their minimal terms end up next to each
+     *  other. Terms occurring in a single document say nothing about
+     *  similarity and are skipped.
+     */
+    public static int[] bySimilarity(PersistentHashedIndex index) {
+        HashMap<Integer, int[]> signatures = new HashMap<>();
+        for (int docID = 0; docID < index.docTable().size(); ++docID) {
+            int[] signature = new int[MINHASH_SIZE];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            signatures.put(docID, signature);
+        }
+        index.forEachPostings((term, postingsList) -> {
+            if (postingsList.size() < 2) return;
+            int[] hashes = minHashes(term);
+            for (PostingsEntry postingsEntry : postingsList.getList()) {
+                int[] signature = signatures.get(postingsEntry.docID);
+                if (signature == null) continue;
+                for (int k = 0; k < MINHASH_SIZE; ++k) {
+                    signature[k] = Math.min(signature[k], hashes[k]);
+                }
+            }
+        });
+
+        ArrayList<Integer> order = new ArrayList<>(signatures.keySet());
+        Collections.sort(order);
+        order.sort((d1, d2) -> {
+            int[] s1 = signatures.get(d1);
+            int[] s2 = signatures.get(d2);
+            for (int k = 0; k < MINHASH_SIZE; ++k) {
+                if (s1[k] != s2[k]) return Integer.compare(s1[k], s2[k]);
+            }
+            return 0;
+        });
+        return fromOrder(order);
+    }
+
+    private static int[] minHashes(String term) {
+        int[] hashes = new int[MINHASH_SIZE];
+        for (int k = 0; k < MINHASH_SIZE; ++k) {
+            int h = term.hashCode() * SEEDS[k];
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            hashes[k] = h;
+        }
+        return hashes;
+    }
+
+    /**
+     *  Turns a list of old docIDs, in the wanted order, into a renumbering.
+     */
+    public static int[] fromOrder(List<Integer> order) {
+        int maxID = -1;
+        for (int docID : order) {
+            maxID = Math.max(maxID, docID);
+        }
+        int[] newID = new int[maxID + 1];
+        Arrays.fill(newID, -1);
+        for (int i = 0; i < order.size(); ++i) {
+            newID[order.get(i)] = i;
+        }
+        return newID;
+    }
+
+    /**
+     *  Checks whether docIDs are already in descending pagerank order, i.e.
+     *  walking the documents by increasing docID never sees the pagerank
+     *  go up. Missing pageranks count as 0.
+     */
+    public static boolean isPageRankOrdered(DocumentTable docTable) {
+        if (!docTable.hasPageRanks()) return false;
+        double last = Double.MAX_VALUE;
+        for (int docID = 0; docID < docTable.size(); ++docID) {
+            double pr = docTable.pageRank(docID);
+            if (pr > last) return false;
+            last = pr;
+        }
+        return true;
+    }
+
+    static GapStats gapStats(PersistentHashedIndex index) {
+        GapStats stats = new GapStats();
+        index.forEachPostings((term, postingsList) -> stats.add(postingsList));
+        return stats;
+    }
+
+    /**
+     *  Offline renumbering of a built persistent index. By default documents
+     *  are clustered by similarity; with -pr they are put in pagerank order.
+     *  Use -scalable for the scalable (guardian) index and -r for the rank
+     *  file, which is rewritten under the new numbering as well.
+     */
+    public static void main(String[] args) {
+        boolean scalable = false;
+        boolean pagerank = false;
+        String rank_file = "./pagerank/pageranks.txt";
+        int i = 0;
+        while (i < args.length) {
+            if ("-scalable".equals(args[i])) {
+                i++;
+                scalable = true;
+            } else if ("-pr".equals(args[i])) {
+                i++;
+                pagerank = true;
+            } else if ("-r".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    rank_file = args[i++];
+                }
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        PersistentHashedIndex index = scalable ? new PersistentScalableHashedIndex() : new PersistentHashedIndex();
+        boolean hasRanks = new File(rank_file).exists();
+        if (hasRanks) {
+            PageRank.readRankFile(rank_file, index.docTable());
+        }
+
+        long startTime = System.currentTimeMillis();
+        GapStats before = gapStats(index);
+        System.err.println("Before: " + before);
+        int[] newID = pagerank ? byPageRank(index.docTable()) : bySimilarity(index);
+        index.remapDocIDs(newID);
+        BiwordIndex biwordIndex = new BiwordIndex(scalable ? PersistentScalableHashedIndex.INDEXDIR : PersistentHashedIndex.INDEXDIR);
+        if (biwordIndex.readIndex()) {
+            biwordIndex.remapDocIDs(newID);
+        }
+        ForwardIndex forwardIndex = new ForwardIndex(biwordIndex.dir);
+        if (forwardIndex.readIndex()) {
+            forwardIndex.remapDocIDs(newID);
+        }
+        DocumentStore documentStore = new DocumentStore(biwordIndex.dir);
+        if (documentStore.readIndex()) {
+            documentStore.remapDocIDs(newID);
+        }
+        if (hasRanks) {
+            PageRank.writeRankFile(index.docTable(), rank_file);
+        }
+        GapStats after = gapStats(index);
+        System.err.println("After:  " + after);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.err.println(String.format("Renumbered %d documents in %.1f seconds.", newID.length, elapsedTime / 1000.0));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ *  Computes the euclidean lengths of the tf-idf vectors of the documents
+ *  from the postings lists of the terms, as the lists stream past while an
+ *  index is written.
+ *
+ *  The df of a term is the size of its list, so only the number of
+ *  documents must be known up front. The lists are handed in batches to
+ *  NORM_THREADS threads, each adding the squared weights of its lists to an
+ *  array of its own; the arrays are summed into the document table once
+ *  all lists are in. The queue of batches is bounded, so the lists not yet
+ *  added take a bounded amount of memory.
+ */
+public class DocumentNorms {
+
+    static final int NORM_THREADS = 4;
+
+    /** The lists are handed to the threads in batches of about this many postings. */
+    static final int BATCH_POSTINGS = 64 * 1024;
+
+    /** Marks the end of the lists to the threads. */
+    private static final ArrayList<PostingsList> END = new ArrayList<>();
+
+    /** The number of documents. */
+    private int N;
+
+    /** The sums of the squared weights, by thread and docID. */
+    private double[][] squares = new double[NORM_THREADS][];
+
+    private Thread[] threads = new Thread[NORM_THREADS];
+
+    private ArrayBlockingQueue<ArrayList<PostingsList>> batches = new ArrayBlockingQueue<>(2 * NORM_THREADS);
+
+    /** The batch being filled. */
+    private ArrayList<PostingsList> batch = new ArrayList<>();
+    private int batchPostings = 0;
+
+
+    public DocumentNorms( int N ) {
+        this.N = N;
+        for (int t = 0; t < NORM_THREADS; ++t) {
+            final double[] sums = squares[t] = new double[N];
+            threads[t] = new Thread(() -> run(sums), "norms");
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+    }
+
+    private void run( double[] sums ) {
+        try {
+            while (true) {
+                ArrayList<PostingsList> lists = batches.take();
+                if (lists == END) return;
+                for (PostingsList postingsList : lists) {
+                    double idf = Math.log((double) N / postingsList.size());
+                    for (int i = 0; i < postingsList.size(); ++i) {
+                        PostingsEntry postingsEntry = postingsList.get(i);
+                        double w = postingsEntry.tf * idf;
+                        sums[postingsEntry.docID] += w * w;
+                    }
+                }
+            }
+        } catch ( InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Adds the postings list of a term. The list must not change afterwards.
+     */
+    public void add( PostingsList postingsList ) {
+        batch.add(postingsList);
+        batchPostings += postingsList.size();
+        if (batchPostings >= BATCH_POSTINGS) flush();
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) return;
+        put(batch);
+        batch = new ArrayList<>();
+        batchPostings = 0;
+    }
+
+    private void put( ArrayList<PostingsList> lists ) {
+        try {
+            batches.put(lists);
+        } catch ( InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Waits for the lists added to be done, and sets the euclidean lengths
+     *  in the document table.
+     */
+    public void writeTo( DocumentTable docTable ) {
+        flush();
+        for (int t = 0; t < NORM_THREADS; ++t) {
+            put(END);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch ( InterruptedException e ) {
+                e.printStackTrace();
+            }
+        }
+        for (int docID = 0; docID < N; ++docID) {
+            double sum = 0;
+            for (double[] sums : squares) {
+                sum += sums[docID];
+            }
+            docTable.setNorm(docID, Math.sqrt(sum));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  The texts of the documents, compressed, for showing results.
+ *
+ *  The texts are stored in the order they are indexed, in blocks of about
+ *  BLOCK_SIZE bytes, and every block is compressed with Deflate on its own.
+ *  The document table gives, for every docID, its block and where its text
+ *  is in the uncompressed block, and the block table where every block is
+ *  in the documents file. Getting a document is then one read of its
+ *  block, and the blocks last read are kept for the documents next to them.
+ *
+ *  After its text, every document has where each of its tokens starts and
+ *  ends in the text, by the position of the token in the document. This is
+ *  what snippets are cut out of the text with, without tokenizing it again.
+ *  They are stored as a count and then, for every token, the number of
+ *  characters since the end of the token before it and its length, in
+ *  variable-length bytes.
+ *
+ *  For a persistent index the blocks are written to the documents file
+ *  while indexing. For a main-memory index they are kept in main memory.
+ */
+public class DocumentStore {
+
+    /** The documents file name */
+    public static final String DOCUMENTS_FNAME = "documents";
+
+    /** The file name of the document and block tables */
+    public static final String TABLE_FNAME = "document_table";
+
+    /**
+     *  Documents are put together in blocks of about this many bytes. Larger
+     *  blocks compress a little better, smaller ones are faster to get a
+     *  document from.
+     */
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    /** The number of uncompressed blocks kept in main memory. */
+    static final int CACHED_BLOCKS = 16;
+
+    /** The directory of the persistent index, null for a main-memory index. */
+    String dir;
+
+    /** For every docID, its block, start and length in the block; block -1 for none. */
+    private int[] docBlock = new int[0];
+    private int[] docStart = new int[0];
+    private int[] docLength = new int[0];
+
+    /** For every block, its offset and compressed length in the documents file. */
+    private ArrayList<Long> blockOffset = new ArrayList<>();
+    private ArrayList<Integer> blockLength = new ArrayList<>();
+
+    /** The block being filled while indexing. */
+    private ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+    /** Where the blocks are written, and how many bytes were. */
+    private OutputStream out;
+    private long written = 0;
+
+    /** The blocks of a main-memory index. */
+    private ByteArrayOutputStream memory;
+    private byte[] blocks;
+
+    private RandomAccessFile file;
+
+    /** The blocks last read, uncompressed, the least recently used first. */
+    private LinkedHashMap<Integer,byte[]> cached = new LinkedHashMap<Integer,byte[]>(2 * CACHED_BLOCKS, 0.75f, true) {
+        protected boolean removeEldestEntry( Map.Entry<Integer,byte[]> eldest ) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+
+    public DocumentStore( String dir ) {
+        this.dir = dir;
+    }
+
+    /**
+     *  Adds the text of a document, as the bytes of the file, in UTF-8, with
+     *  where its tokens start and end in the text, in characters, as
+     *  "start end start end ...".
+     */
+    public void add( int docID, byte[] text, int[] offsets, int tokens ) {
+        if (docID >= docBlock.length) {
+            int length = docBlock.length;
+            int newLength = Math.max(2 * length, docID + 1);
+            docBlock = Arrays.copyOf(docBlock, newLength);
+            docStart = Arrays.copyOf(docStart, newLength);
+            docLength = Arrays.copyOf(docLength, newLength);
+            Arrays.fill(docBlock, length, newLength, -1);
+        }
+        docBlock[docID] = blockOffset.size();
+        docStart[docID] = block.size();
+        docLength[docID] = text.length;
+        block.write(text, 0, text.length);
+        writeVInt(tokens);
+        int end = 0;
+        for (int i = 0; i < tokens; ++i) {
+            writeVInt(offsets[2 * i] - end);
+            writeVInt(offsets[2 * i + 1] - offsets[2 * i]);
+            end = offsets[2 * i + 1];
+        }
+        if (block.size() >= BLOCK_SIZE) flushBlock();
+    }
+
+    private void writeVInt( int value ) {
+        while ((value & ~0x7f) != 0) {
+            block.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    /**
+     *  Compresses the block being filled, and writes it.
+     */
+    private void flushBlock() {
+        if (block.size() == 0) return;
+        try {
+            if (out == null) {
+                if (dir == null) {
+                    memory = new ByteArrayOutputStream();
+                    out = memory;
+                } else {
+                    out = new BufferedOutputStream(new FileOutputStream( dir + "/" + DOCUMENTS_FNAME ));
+                }
+            }
+            byte[] compressed = deflate(block.toByteArray());
+            blockOffset.add(written);
+            blockLength.add(compressed.length);
+            out.write(compressed);
+            written += compressed.length;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        block.reset();
+    }
+
+    private static byte[] deflate( byte[] data ) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    /**
+     *  Returns the text of a document, or null if it is not in the store.
+     */
+    public String get( int docID ) {
+        byte[] data = blockOf(docID);
+        if (data == null) return null;
+        return new String(data, docStart[docID], docLength[docID], StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Returns where the tokens of a document start and end in its text, in
+     *  characters, as "start end start end ..." by the position of the
+     *  token, or null if the document is not in the store.
+     */
+    public int[] offsets( int docID ) {
+        byte[] data = blockOf(docID);
+        if (data == null) return null;
+        int[] p = { docStart[docID] + docLength[docID] };
+        int[] offsets = new int[2 * readVInt(data, p)];
+        int end = 0;
+        for (int i = 0; i < offsets.length; i += 2) {
+            offsets[i] = end + readVInt(data, p);
+            offsets[i + 1] = end = offsets[i] + readVInt(data, p);
+        }
+        return offsets;
+    }
+
+    /**
+     *  Reads a variable-length int at p[0] in data, and moves p[0] past it.
+     */
+    private static int readVInt( byte[] data, int[] p ) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[p[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /**
+     *  The uncompressed block of a document, or null if it is not in the store.
+     */
+    private byte[] blockOf( int docID ) {
+        if (docID < 0 || docID >= docBlock.length || docBlock[docID] < 0) return null;
+        int b = docBlock[docID];
+        if (b >= blockOffset.size()) return null;
+        byte[] compressed;
+        synchronized (this) {
+            byte[] data = cached.get(b);
+            if (data != null) return data;
+            compressed = readBlock(b);
+        }
+        if (compressed == null) return null;
+        // inflated outside the lock, so that blocks can be inflated in parallel
+        byte[] data = inflate(compressed);
+        if (data != null) {
+            synchronized (this) {
+                cached.put(b, data);
+            }
+        }
+        return data;
+    }
+
+    private byte[] readBlock( int b ) {
+        int length = blockLength.get(b);
+        byte[] compressed = new byte[length];
+        try {
+            if (dir == null) {
+                System.arraycopy(blocks, (int) (long) blockOffset.get(b), compressed, 0, length);
+            } else {
+                file.seek(blockOffset.get(b));
+                file.readFully(compressed);
+            }
+            return compressed;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static byte[] inflate( byte[] compressed ) {
+        try {
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            ByteArrayOutputStream data = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) break;
+                data.write(buffer, 0, n);
+            }
+            inflater.end();
+            return data.toByteArray();
+        } catch ( DataFormatException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     *  Writes the last block and the tables once indexing is done, and opens
+     *  the store for reading.
+     */
+    public void writeIndex() {
+        flushBlock();
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (dir == null) {
+                blocks = memory == null ? new byte[0] : memory.toByteArray();
+                memory = null;
+                return;
+            }
+            writeTable();
+            open();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeTable() throws IOException {
+        try (DataOutputStream tableOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream( dir + "/" + TABLE_FNAME )))) {
+            tableOut.writeInt(docBlock.length);
+            for (int docID = 0; docID < docBlock.length; ++docID) {
+                tableOut.writeInt(docBlock[docID]);
+                tableOut.writeInt(docStart[docID]);
+                tableOut.writeInt(docLength[docID]);
+            }
+            tableOut.writeInt(blockOffset.size());
+            for (int b = 0; b < blockOffset.size(); ++b) {
+                tableOut.writeLong(blockOffset.get(b));
+                tableOut.writeInt(blockLength.get(b));
+            }
+        }
+    }
+
+    private synchronized void open() throws IOException {
+        if (file != null) file.close();
+        file = new RandomAccessFile( dir + "/" + DOCUMENTS_FNAME, "r" );
+        cached.clear();
+    }
+
+    /**
+     *  Reads the tables of a persistent index, and opens the documents file.
+     *
+     *  @return false if there is no document store on disk.
+     */
+    public boolean readIndex() {
+        if (dir == null || !new File( dir + "/" + TABLE_FNAME ).exists()) return false;
+        try (DataInputStream tableIn = new DataInputStream(new BufferedInputStream(
+                new FileInputStream( dir + "/" + TABLE_FNAME )))) {
+            int docs = tableIn.readInt();
+            docBlock = new int[docs];
+            docStart = new int[docs];
+            docLength = new int[docs];
+            for (int docID = 0; docID < docs; ++docID) {
+                docBlock[docID] = tableIn.readInt();
+                docStart[docID] = tableIn.readInt();
+                docLength[docID] = tableIn.readInt();
+            }
+            int numberOfBlocks = tableIn.readInt();
+            blockOffset.clear();
+            blockLength.clear();
+            for (int b = 0; b < numberOfBlocks; ++b) {
+                blockOffset.add(tableIn.readLong());
+                blockLength.add(tableIn.readInt());
+            }
+            open();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Renumbers the documents, see Index.remapDocIDs. Only the document
+     *  table changes, the blocks stay as they are.
+     */
+    public void remapDocIDs( int[] newID ) {
+        int length = docBlock.length;
+        int[] block = new int[length];
+        int[] start = new int[length];
+        int[] docs = new int[length];
+        Arrays.fill(block, -1);
+        for (int docID = 0; docID < length && docID < newID.length; ++docID) {
+            block[newID[docID]] = docBlock[docID];
+            start[newID[docID]] = docStart[docID];
+            docs[newID[docID]] = docLength[docID];
+        }
+        docBlock = block;
+        docStart = start;
+        docLength = docs;
+        if (dir == null) return;
+        try {
+            writeTable();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+}
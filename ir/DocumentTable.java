@@ -0,0 +1,383 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ *  The names, lengths, euclidean lengths and pageranks of the documents of
+ *  an index, by docID.
+ *
+ *  The numbers are kept in primitive arrays, one per column, so scoring
+ *  reads them without boxing or hashing. The names are front coded in
+ *  docID order: every name is stored as the number of bytes it shares with
+ *  the name before it and the rest of its bytes, and every RESTART_INTERVAL
+ *  names one is stored whole, so a name is found by decoding at most
+ *  RESTART_INTERVAL names. Documents of the same directory share most of
+ *  their paths, so this takes a fraction of the space of the strings.
+ *
+ *  A persistent index writes the table to one binary file:
+ *
+ *      size flags lengths[size] norms[size] pageranks[size]
+ *      restarts restart[restarts] blobLength blob[blobLength]
+ *
+ *  which is memory mapped when the index is opened. The columns are copied
+ *  out of it in one go, the names are decoded straight from the mapping.
+ */
+public class DocumentTable {
+
+    /** The document table file name */
+    public static final String TABLE_FNAME = "doctable";
+
+    /** Every this many names, one is stored whole. */
+    static final int RESTART_INTERVAL = 16;
+
+    /** Flags of the columns present in the file. */
+    private static final int HAS_NORMS = 1;
+    private static final int HAS_PAGERANKS = 2;
+
+    /** The directory of the persistent index, null for a main-memory index. */
+    String dir;
+
+    /** The number of documents, the largest docID plus one. */
+    private int size = 0;
+
+    private int[] lengths = new int[0];
+    private float[] norms = new float[0];
+    private float[] pageRanks = new float[0];
+    private boolean hasNorms = false;
+    private boolean hasPageRanks = false;
+
+    /** The front-coded names while they are being added, or once mapped. */
+    private byte[] blob = new byte[1024];
+    private int blobLength = 0;
+    private ByteBuffer mapped;
+
+    /** The generation of the file of the table, see tableFile, and whether it was mapped. */
+    private int generation = 0;
+    private boolean generationMapped = false;
+
+    /** Where in the blob every RESTART_INTERVAL:th name starts. */
+    private int[] restarts = new int[0];
+
+    /** The name added last, as bytes. */
+    private byte[] last = new byte[0];
+
+
+    public DocumentTable( String dir ) {
+        this.dir = dir;
+    }
+
+    /**
+     *  Adds a document. Documents are added in docID order; documents
+     *  skipped have no name and length 0.
+     */
+    public void add( int docID, String name, int length ) {
+        if (docID < size) {
+            throw new IllegalArgumentException("Document " + docID + " is already in the table");
+        }
+        if (mapped != null) {
+            // the names are copied out of the mapping to add to them
+            String lastName = size > 0 ? name(size - 1) : null;
+            last = lastName == null ? new byte[0] : lastName.getBytes(StandardCharsets.UTF_8);
+            blob = new byte[blobLength + 1024];
+            mapped.duplicate().get(blob, 0, blobLength);
+            mapped = null;
+        }
+        while (size < docID) {
+            addName(new byte[0]);
+            grow(size + 1);
+            ++size;
+        }
+        addName(name.getBytes(StandardCharsets.UTF_8));
+        grow(size + 1);
+        lengths[size] = length;
+        ++size;
+    }
+
+    private void grow( int minLength ) {
+        if (minLength <= lengths.length) return;
+        int length = Math.max(2 * lengths.length, Math.max(minLength, 16));
+        lengths = Arrays.copyOf(lengths, length);
+        norms = Arrays.copyOf(norms, length);
+        pageRanks = Arrays.copyOf(pageRanks, length);
+    }
+
+    private void addName( byte[] name ) {
+        int shared = 0;
+        if (size % RESTART_INTERVAL == 0) {
+            if (size / RESTART_INTERVAL >= restarts.length) {
+                restarts = Arrays.copyOf(restarts, Math.max(2 * restarts.length, 16));
+            }
+            restarts[size / RESTART_INTERVAL] = blobLength;
+        } else {
+            while (shared < name.length && shared < last.length && name[shared] == last[shared]) {
+                ++shared;
+            }
+        }
+        if (blobLength + name.length - shared + 10 > blob.length) {
+            blob = Arrays.copyOf(blob, 2 * blob.length + name.length);
+        }
+        blobLength = writeVInt(blob, blobLength, shared);
+        blobLength = writeVInt(blob, blobLength, name.length - shared);
+        System.arraycopy(name, shared, blob, blobLength, name.length - shared);
+        blobLength += name.length - shared;
+        last = name;
+    }
+
+    private static int writeVInt( byte[] data, int p, int value ) {
+        while ((value & ~0x7f) != 0) {
+            data[p++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[p++] = (byte) value;
+        return p;
+    }
+
+    /** The number of documents. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *  Returns the name of a document, or null if there is no such document.
+     */
+    public String name( int docID ) {
+        if (docID < 0 || docID >= size) return null;
+        int[] p = { restarts[docID / RESTART_INTERVAL] };
+        byte[] name = new byte[0];
+        for (int d = docID - docID % RESTART_INTERVAL; d <= docID; ++d) {
+            int shared = readVInt(p);
+            int rest = readVInt(p);
+            byte[] next = Arrays.copyOf(name, shared + rest);
+            for (int i = 0; i < rest; ++i) {
+                next[shared + i] = byteAt(p[0]++);
+            }
+            name = next;
+        }
+        return name.length == 0 ? null : new String(name, StandardCharsets.UTF_8);
+    }
+
+    private byte byteAt( int p ) {
+        return mapped != null ? mapped.get(p) : blob[p];
+    }
+
+    private int readVInt( int[] p ) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = byteAt(p[0]++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /** The number of words of a document. */
+    public int length( int docID ) {
+        return docID < size ? lengths[docID] : 0;
+    }
+
+    /** The euclidean length of the tf-idf vector of a document. */
+    public double norm( int docID ) {
+        return docID < size ? norms[docID] : 0;
+    }
+
+    public void setNorm( int docID, double norm ) {
+        grow(docID + 1);
+        norms[docID] = (float) norm;
+        hasNorms = true;
+    }
+
+    public boolean hasNorms() {
+        return hasNorms;
+    }
+
+    /** The pagerank of a document, 0 if it has none. */
+    public double pageRank( int docID ) {
+        return docID < size ? pageRanks[docID] : 0;
+    }
+
+    public void setPageRank( int docID, double pageRank ) {
+        grow(docID + 1);
+        pageRanks[docID] = (float) pageRank;
+        hasPageRanks = true;
+    }
+
+    public boolean hasPageRanks() {
+        return hasPageRanks;
+    }
+
+    /**
+     *  Renumbers the documents, see Index.remapDocIDs. The names are coded
+     *  again in the new order.
+     */
+    public void remapDocIDs( int[] newID ) {
+        int newSize = 0;
+        for (int docID = 0; docID < size && docID < newID.length; ++docID) {
+            newSize = Math.max(newSize, newID[docID] + 1);
+        }
+        String[] names = new String[newSize];
+        int[] newLengths = new int[newSize];
+        float[] newNorms = new float[newSize];
+        float[] newPageRanks = new float[newSize];
+        for (int docID = 0; docID < size && docID < newID.length; ++docID) {
+            int d = newID[docID];
+            if (d < 0) continue;
+            names[d] = name(docID);
+            newLengths[d] = lengths[docID];
+            newNorms[d] = norms[docID];
+            newPageRanks[d] = pageRanks[docID];
+        }
+        size = 0;
+        blob = new byte[Math.max(blobLength, 1024)];
+        blobLength = 0;
+        mapped = null;
+        restarts = new int[0];
+        last = new byte[0];
+        for (int d = 0; d < newSize; ++d) {
+            addName(names[d] == null ? new byte[0] : names[d].getBytes(StandardCharsets.UTF_8));
+            ++size;
+        }
+        lengths = newLengths;
+        norms = newNorms;
+        pageRanks = newPageRanks;
+        writeIndex();
+    }
+
+    /**
+     *  The file of a generation of the table: "doctable", then "doctable.1",
+     *  "doctable.2", ... A table read from disk stays mapped, and a mapped
+     *  file cannot be replaced on every system, e.g. not on Windows, so a
+     *  mapped table is written again to the next generation instead.
+     */
+    private File tableFile( int generation ) {
+        return new File( dir + "/" + TABLE_FNAME + (generation == 0 ? "" : "." + generation) );
+    }
+
+    /** The latest generation of the table on disk, or -1 if there is none. */
+    private int latestGeneration() {
+        String[] names = new File( dir ).list();
+        int latest = -1;
+        for (int i = 0; names != null && i < names.length; ++i) {
+            if (names[i].equals(TABLE_FNAME)) {
+                latest = Math.max(latest, 0);
+            } else if (names[i].matches(TABLE_FNAME + "\\.[0-9]+")) {
+                latest = Math.max(latest, Integer.parseInt(names[i].substring(TABLE_FNAME.length() + 1)));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     *  Deletes the generations before the current one. A generation still
+     *  mapped may not be deleted yet, and is left for the next time.
+     */
+    private void deleteOlderGenerations() {
+        for (int g = 0; g < generation; ++g) {
+            File old = tableFile(g);
+            if (old.exists()) old.delete();
+        }
+    }
+
+    /**
+     *  Writes the table of a persistent index to disk. It is written to a
+     *  new file which then becomes the table; if the table was mapped, the
+     *  new file is the next generation, see tableFile.
+     */
+    public void writeIndex() {
+        if (dir == null) return;
+        // the mapping of a file lasts until it is garbage collected, even once
+        // the table no longer reads it, e.g. after remapDocIDs
+        int latest = Math.max(generation, latestGeneration());
+        int next = generationMapped ? latest + 1 : latest;
+        File file = tableFile(next);
+        File tmp = new File( dir + "/" + TABLE_FNAME + ".tmp" );
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream( tmp )))) {
+            out.writeInt(size);
+            out.writeInt((hasNorms ? HAS_NORMS : 0) | (hasPageRanks ? HAS_PAGERANKS : 0));
+            for (int d = 0; d < size; ++d) {
+                out.writeInt(lengths[d]);
+            }
+            for (int d = 0; d < size; ++d) {
+                out.writeFloat(norms[d]);
+            }
+            for (int d = 0; d < size; ++d) {
+                out.writeFloat(pageRanks[d]);
+            }
+            int numberOfRestarts = (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+            out.writeInt(numberOfRestarts);
+            for (int r = 0; r < numberOfRestarts; ++r) {
+                out.writeInt(restarts[r]);
+            }
+            out.writeInt(blobLength);
+            if (mapped == null) {
+                out.write(blob, 0, blobLength);
+            } else {
+                for (int p = 0; p < blobLength; ++p) {
+                    out.write(mapped.get(p));
+                }
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        generation = next;
+        generationMapped = false;
+        deleteOlderGenerations();
+    }
+
+    /**
+     *  Maps the table of a persistent index.
+     *
+     *  @return false if there is no document table on disk.
+     */
+    public boolean readIndex() {
+        if (dir == null) return false;
+        int latest = latestGeneration();
+        if (latest < 0) return false;
+        try (RandomAccessFile file = new RandomAccessFile( tableFile(latest), "r" )) {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            size = buffer.getInt();
+            int flags = buffer.getInt();
+            hasNorms = (flags & HAS_NORMS) != 0;
+            hasPageRanks = (flags & HAS_PAGERANKS) != 0;
+            lengths = new int[size];
+            norms = new float[size];
+            pageRanks = new float[size];
+            buffer.asIntBuffer().get(lengths);
+            buffer.position(buffer.position() + 4 * size);
+            buffer.asFloatBuffer().get(norms);
+            buffer.position(buffer.position() + 4 * size);
+            buffer.asFloatBuffer().get(pageRanks);
+            buffer.position(buffer.position() + 4 * size);
+            restarts = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(restarts);
+            buffer.position(buffer.position() + 4 * restarts.length);
+            blobLength = buffer.getInt();
+            mapped = buffer.slice();
+            blob = null;
+            last = new byte[0];
+            generation = latest;
+            generationMapped = true;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return false;
+        }
+        deleteOlderGenerations();
+        return true;
+    }
+}
@@ -31,21 +31,36 @@ public class Engine {
     /** K-gram index */
     KGramIndex kgIndex = new KGramIndex(2);
 
-    /** The searcher used to search the index. */
+    /** Biword index for phrase queries, if built. */
+    BiwordIndex biwordIndex;
+
+    /** Forward index of the term vectors of the documents, if built. */
+    ForwardIndex forwardIndex;
+
+    /** The texts of the documents, for showing results. */
+    DocumentStore documentStore;
+
+    /** The snippets of the results, if the texts are stored. */
+    volatile Snippets snippets;
+
+    /**
+     * The searcher used to search the index. It searches nothing until the
+     * indexes are built and published to it.
+     */
     Searcher searcher;
 
     /** Spell checker */
     SpellChecker speller;
 
-    /** The engine GUI. */
+    /** The engine GUI, null when serving over HTTP or running without it. */
     SearchGUI gui;
 
+    /** The HTTP server, if serving. */
+    SearchServer server;
+
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
-
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
 
@@ -55,9 +70,33 @@ public class Engine {
     /** The file containing the pageranks. */
     String rank_file = "./pagerank/pageranks.txt";
 
+    /** The file containing the links between the documents, to compute the pageranks from. */
+    String links_file = "./pagerank/linksDavis.txt";
+
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Renumber the documents in descending pagerank order after indexing. */
+    boolean pagerank_order = false;
+
+    /** Build the biword index of common word pairs while indexing. */
+    boolean biwords = false;
+
+    /** Serve searches over HTTP on this port instead of showing the GUI, if not -1. */
+    int server_port = -1;
+
+    /** Show the GUI. */
+    boolean show_gui = true;
+
+    /** The size of the result cache of the searcher, see ResultCache. */
+    long resultCacheBytes = ResultCache.DEFAULT_BYTES;
+
+    /** The size of the pair cache of the searcher, see PairCache. */
+    long pairCacheBytes = PairCache.DEFAULT_BYTES;
+
+    /** Log the queries searched to this file, if not null, see QueryLog. */
+    String log_file = null;
+
     /* ----------------------------------------------- */
 
     /**
@@ -67,44 +106,134 @@ public class Engine {
     public Engine(String[] args) {
         decodeArgs(args);
         indexer = new Indexer(index, kgIndex, patterns_file);
-        searcher = new Searcher(index, kgIndex);
+        searcher = new Searcher(kgIndex);
+        searcher.resultCache.resize(resultCacheBytes);
+        searcher.pairCache.resize(pairCacheBytes);
+        if (log_file != null) {
+            try {
+                searcher.queryLog = new QueryLog(log_file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (index instanceof PersistentScalableHashedIndex) {
+            biwordIndex = new BiwordIndex(PersistentScalableHashedIndex.INDEXDIR);
+        } else if (index instanceof PersistentHashedIndex) {
+            biwordIndex = new BiwordIndex(PersistentHashedIndex.INDEXDIR);
+        } else {
+            biwordIndex = new BiwordIndex(null);
+        }
+        if (is_indexing && biwords) {
+            indexer.biwordIndex = biwordIndex;
+        }
+        forwardIndex = new ForwardIndex(biwordIndex.dir);
+        documentStore = new DocumentStore(biwordIndex.dir);
+        if (is_indexing) {
+            indexer.forwardIndex = forwardIndex;
+            indexer.documentStore = documentStore;
+        }
         speller = new SpellChecker(index, kgIndex);
-        gui = new SearchGUI(this);
-        gui.init();
+        if (show_gui) {
+            gui = new SearchGUI(this);
+            gui.init();
+        }
         /*
          * Calls the indexer to index the chosen directory structure.
-         * Access to the index is synchronized since we don't want to
-         * search at the same time we're indexing new files (this might
-         * corrupt the index).
+         * Queries are not run while indexing, since the searcher is only
+         * given the indexes once they are done, see IndexSnapshot.
          */
         if (is_indexing) {
-            synchronized (indexLock) {
-                gui.displayInfoText("Indexing, please wait...");
-                long startTime = System.currentTimeMillis();
-                for (int i = 0; i < dirNames.size(); i++) {
-                    File dokDir = new File(dirNames.get(i));
-                    indexer.processFiles(dokDir, is_indexing);
-                }
-                index.computeEuclideanLength();
+            displayInfoText("Indexing, please wait...");
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < dirNames.size(); i++) {
+                File dokDir = new File(dirNames.get(i));
+                indexer.processFiles(dokDir, is_indexing);
+            }
+            index.computeEuclideanLength();
 
-                kgIndex.save();
+            kgIndex.save();
 
-                index.cleanup();
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
+            index.cleanup();
+            if (biwords) {
+                biwordIndex.prune(index.docTable().size());
+                biwordIndex.writeIndex();
+            } else {
+                biwordIndex = null;
+            }
+            forwardIndex.writeIndex();
+            documentStore.writeIndex();
+            if (pagerank_order) {
+                reorderByPagerank();
             }
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
         } else {
             long startTime = System.currentTimeMillis();
 
             kgIndex.load();
+            if (!biwordIndex.readIndex()) {
+                biwordIndex = null;
+            }
+            if (!forwardIndex.readIndex()) {
+                forwardIndex = null;
+            }
+            if (!documentStore.readIndex()) {
+                documentStore = null;
+            }
             kgIndex.tokensContaining("ve");
             kgIndex.tokensContaining("th he");
 
             long elapsedTime = System.currentTimeMillis() - startTime;
-            gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
-            gui.displayInfoText("Index is loaded from disk");
+            displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
+            displayInfoText("Index is loaded from disk");
+        }
+        if (!index.docTable().hasPageRanks()) {
+            calculatePagerank();
+        }
+        if (documentStore != null) {
+            snippets = new Snippets(index, documentStore);
+        }
+        searcher.publish(new IndexSnapshot(index, biwordIndex, forwardIndex,
+                                           DocReordering.isPageRankOrdered(index.docTable())));
+        if (server_port >= 0) {
+            server = new SearchServer(this);
+            try {
+                server.start(server_port);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Shows a message in the GUI, or on standard error when serving.
+     */
+    void displayInfoText(String text) {
+        if (gui != null) {
+            gui.displayInfoText(text);
+        } else {
+            System.err.println(text);
+        }
+    }
+
+    /**
+     * Renumbers the documents in descending pagerank order, so that the postings
+     * of every term are also sorted by pagerank. The pageranks are recomputed
+     * since the rank file is keyed by the docIDs of the previous numbering.
+     */
+    private void reorderByPagerank() {
+        displayInfoText("Renumbering documents by pagerank...");
+        PageRank pageRank = new PageRank(links_file);
+        pageRank.writePageRank(reverseDocNames(), rank_file);
+        readPageRank();
+        int[] newID = DocReordering.byPageRank(index.docTable());
+        index.remapDocIDs(newID);
+        if (biwordIndex != null) {
+            biwordIndex.remapDocIDs(newID);
         }
-        calculatePagerank();
+        forwardIndex.remapDocIDs(newID);
+        documentStore.remapDocIDs(newID);
+        PageRank.writeRankFile(index.docTable(), rank_file);
     }
 
     private void calculatePagerank() {
@@ -112,32 +241,29 @@ public class Engine {
         if (file.exists()) {
             readPageRank();
         } else {
-            PageRank pageRank = new PageRank("./pagerank/linksDavis.txt");
+            PageRank pageRank = new PageRank(links_file);
             pageRank.topN(30);
             pageRank.writePageRank(reverseDocNames(), rank_file);
             readPageRank();
         }
     }
 
+    /**
+     * Reads the rank file into the document table, which keeps the pageranks
+     * from then on.
+     */
     private void readPageRank() {
-        try (BufferedReader br = new BufferedReader(new FileReader(rank_file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] res = line.split(",");
-                index.pageRank.put(Integer.parseInt(res[0]), Double.parseDouble(res[1]));
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        PageRank.readRankFile(rank_file, index.docTable());
+        index.docTable().writeIndex();
     }
 
     public HashMap<String, Integer> reverseDocNames() {
         HashMap<String, Integer> answer = new HashMap<>();
-        for (Map.Entry<Integer, String> entry : index.docNames.entrySet()) {
-            String name = entry.getValue();
-            answer.put(name.split("\\\\")[2], entry.getKey());
+        DocumentTable docTable = index.docTable();
+        for (int docID = 0; docID < docTable.size(); ++docID) {
+            String name = docTable.name(docID);
+            if (name == null) continue;
+            answer.put(name.split("\\\\")[2], docID);
         }
         return answer;
     }
@@ -170,9 +296,57 @@ public class Engine {
                 if (i < args.length) {
                     rank_file = args[i++];
                 }
+            } else if ("-g".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    links_file = args[i++];
+                }
             } else if ("-ni".equals(args[i])) {
                 i++;
                 is_indexing = false;
+            } else if ("-pr".equals(args[i])) {
+                i++;
+                pagerank_order = true;
+            } else if ("-bw".equals(args[i])) {
+                i++;
+                biwords = true;
+            } else if ("-server".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    server_port = Integer.parseInt(args[i++]);
+                    show_gui = false;
+                }
+            } else if ("-log".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    log_file = args[i++];
+                }
+            } else if ("-nogui".equals(args[i])) {
+                i++;
+                show_gui = false;
+            } else if ("-pc".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    long megabytes = Long.parseLong(args[i++]);
+                    if (index instanceof PersistentHashedIndex) {
+                        ((PersistentHashedIndex) index).getCache().resize(megabytes << 20);
+                    }
+                }
+            } else if ("-rc".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    resultCacheBytes = Long.parseLong(args[i++]) << 20;
+                }
+            } else if ("-ic".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    pairCacheBytes = Long.parseLong(args[i++]) << 20;
+                }
+            } else if ("-tb".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    Searcher.termBudget = Integer.parseInt(args[i++]);
+                }
             } else {
                 System.err.println("Unknown option: " + args[i]);
                 break;
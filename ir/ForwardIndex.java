@@ -0,0 +1,260 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ *  A forward index: for every document, the IDs of its terms with their
+ *  frequencies, sorted by termID.
+ *
+ *  Relevance feedback and "more like this" queries read the term vectors of
+ *  documents from here instead of reading and tokenizing the documents
+ *  again. The vectors are written while indexing. For a persistent index
+ *  they are appended to the vectors file as each document ends, as
+ *  "count termID tf termID tf ..." in ints, and the file is then memory
+ *  mapped. The offset of every document in it and the terms with their
+ *  document frequencies are kept in main memory.
+ */
+public class ForwardIndex {
+
+    /** The term vectors file name */
+    public static final String VECTORS_FNAME = "vectors";
+
+    /** The file name of the offsets of the vectors, by docID */
+    public static final String OFFSETS_FNAME = "vector_offsets";
+
+    /** The file name of the terms and their document frequencies, by termID */
+    public static final String TERMS_FNAME = "vector_terms";
+
+    /** The directory of the persistent index, null for a main-memory index. */
+    String dir;
+
+    /** The terms by termID, and their document frequencies. */
+    private ArrayList<String> terms = new ArrayList<>();
+    private HashMap<String,Integer> termIDs = new HashMap<>();
+    private int[] dfs = new int[1024];
+
+    /** The vectors of a main-memory index, by docID. */
+    private ArrayList<int[]> vectors = new ArrayList<>();
+
+    /** The vectors file of a persistent index, while indexing and once mapped. */
+    private DataOutputStream out;
+    private long written = 0;
+    private IntBuffer mapped;
+
+    /** The offsets, in ints, of the vectors in the vectors file by docID, -1 for none. */
+    private long[] offsets = new long[0];
+
+    /** The term frequencies of the document being indexed. */
+    private HashMap<Integer,int[]> counts = new HashMap<>();
+
+
+    public ForwardIndex( String dir ) {
+        this.dir = dir;
+    }
+
+    /**
+     *  Inserts the next token of the document being indexed.
+     */
+    public void insert( String token ) {
+        Integer termID = termIDs.get(token);
+        if (termID == null) {
+            termID = terms.size();
+            terms.add(token);
+            termIDs.put(token, termID);
+        }
+        int[] count = counts.get(termID);
+        if (count == null) {
+            counts.put(termID, new int[]{1});
+        } else {
+            ++count[0];
+        }
+    }
+
+    /**
+     *  Ends the document being indexed, and stores its vector.
+     */
+    public void endDocument( int docID ) {
+        int[] termIDs = new int[counts.size()];
+        int n = 0;
+        for (int termID : counts.keySet()) {
+            termIDs[n++] = termID;
+        }
+        Arrays.sort(termIDs);
+        int[] vector = new int[2 * n];
+        for (int k = 0; k < n; ++k) {
+            vector[2 * k] = termIDs[k];
+            vector[2 * k + 1] = counts.get(termIDs[k])[0];
+            if (termIDs[k] >= dfs.length) dfs = Arrays.copyOf(dfs, 2 * termIDs[k] + 1);
+            ++dfs[termIDs[k]];
+        }
+        counts.clear();
+
+        if (dir == null) {
+            while (vectors.size() <= docID) {
+                vectors.add(null);
+            }
+            vectors.set(docID, vector);
+            return;
+        }
+        if (docID >= offsets.length) {
+            int length = offsets.length;
+            offsets = Arrays.copyOf(offsets, Math.max(2 * length, docID + 1));
+            Arrays.fill(offsets, length, offsets.length, -1);
+        }
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream( dir + "/" + VECTORS_FNAME )));
+            }
+            offsets[docID] = written;
+            out.writeInt(n);
+            for (int value : vector) {
+                out.writeInt(value);
+            }
+            written += 1 + vector.length;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Returns the vector of a document as "termID tf termID tf ...", sorted
+     *  by termID, or null if the document has none.
+     */
+    public int[] vector( int docID ) {
+        if (dir == null) {
+            return docID >= 0 && docID < vectors.size() ? vectors.get(docID) : null;
+        }
+        if (mapped == null || docID < 0 || docID >= offsets.length || offsets[docID] < 0) return null;
+        int start = (int) offsets[docID];
+        int[] vector = new int[2 * mapped.get(start)];
+        // a duplicate, since a bulk get moves the position of the buffer
+        IntBuffer buffer = mapped.duplicate();
+        buffer.position(start + 1);
+        buffer.get(vector);
+        return vector;
+    }
+
+    public String term( int termID ) {
+        return terms.get(termID);
+    }
+
+    /** The number of documents of a term. */
+    public int df( int termID ) {
+        return dfs[termID];
+    }
+
+    /** The number of documents of a term, 0 if it is in none. */
+    public int df( String term ) {
+        Integer termID = termIDs.get(term);
+        return termID == null ? 0 : dfs[termID];
+    }
+
+    /**
+     *  Writes the offsets and the terms of a persistent index to disk once
+     *  indexing is done, and maps the vectors file.
+     */
+    public void writeIndex() {
+        if (dir == null) return;
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            writeOffsets();
+            try (DataOutputStream termsOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream( dir + "/" + TERMS_FNAME )))) {
+                termsOut.writeInt(terms.size());
+                for (int termID = 0; termID < terms.size(); ++termID) {
+                    termsOut.writeUTF(terms.get(termID));
+                    termsOut.writeInt(dfs[termID]);
+                }
+            }
+            map();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeOffsets() throws IOException {
+        try (DataOutputStream offsetsOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream( dir + "/" + OFFSETS_FNAME )))) {
+            offsetsOut.writeInt(offsets.length);
+            for (long offset : offsets) {
+                offsetsOut.writeLong(offset);
+            }
+        }
+    }
+
+    private void map() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile( dir + "/" + VECTORS_FNAME, "r" )) {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asIntBuffer();
+        }
+    }
+
+    /**
+     *  Reads the offsets and the terms of a persistent index, and maps the
+     *  vectors file.
+     *
+     *  @return false if there is no forward index on disk.
+     */
+    public boolean readIndex() {
+        if (dir == null || !new File( dir + "/" + TERMS_FNAME ).exists()) return false;
+        try (DataInputStream offsetsIn = new DataInputStream(new BufferedInputStream(
+                     new FileInputStream( dir + "/" + OFFSETS_FNAME )));
+             DataInputStream termsIn = new DataInputStream(new BufferedInputStream(
+                     new FileInputStream( dir + "/" + TERMS_FNAME )))) {
+            offsets = new long[offsetsIn.readInt()];
+            for (int docID = 0; docID < offsets.length; ++docID) {
+                offsets[docID] = offsetsIn.readLong();
+            }
+            int size = termsIn.readInt();
+            terms.clear();
+            termIDs.clear();
+            dfs = new int[size];
+            for (int termID = 0; termID < size; ++termID) {
+                terms.add(termsIn.readUTF());
+                termIDs.put(terms.get(termID), termID);
+                dfs[termID] = termsIn.readInt();
+            }
+            map();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Renumbers the documents, see Index.remapDocIDs. Only the offsets
+     *  move, the vectors stay where they are.
+     */
+    public void remapDocIDs( int[] newID ) {
+        if (dir == null) {
+            ArrayList<int[]> remapped = new ArrayList<>(Collections.nCopies(vectors.size(), (int[]) null));
+            for (int docID = 0; docID < vectors.size() && docID < newID.length; ++docID) {
+                remapped.set(newID[docID], vectors.get(docID));
+            }
+            vectors = remapped;
+            return;
+        }
+        long[] remapped = new long[offsets.length];
+        Arrays.fill(remapped, -1);
+        for (int docID = 0; docID < offsets.length && docID < newID.length; ++docID) {
+            remapped[newID[docID]] = offsets[docID];
+        }
+        offsets = remapped;
+        try {
+            writeOffsets();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+}
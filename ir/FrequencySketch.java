@@ -0,0 +1,85 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ *  Estimates how often keys were seen recently, in a fixed amount of
+ *  memory whatever the number of keys: a count-min sketch of 4 rows of
+ *  4-bit counters, packed 16 to a long. A key is counted in one counter of
+ *  every row, and its count is the smallest of them. All counters are
+ *  halved every SAMPLE_FACTOR increments per counter of a row, so the
+ *  counts follow the recent keys. Not thread safe.
+ */
+class FrequencySketch {
+
+    /** The counters are halved after this many increments per counter of a row. */
+    static final int SAMPLE_FACTOR = 10;
+
+    /** The largest count. */
+    static final int MAX_COUNT = 15;
+
+    private long[] counters;
+    private int widthMask;
+    private int increments = 0;
+    private int sampleSize;
+
+
+    /**
+     *  A sketch of rows of <code>width</code> counters, rounded up to a
+     *  power of two.
+     */
+    FrequencySketch( int width ) {
+        int w = 16;
+        while (w < width) {
+            w <<= 1;
+        }
+        widthMask = w - 1;
+        counters = new long[w / 4];
+        sampleSize = SAMPLE_FACTOR * w;
+    }
+
+    /** The index of the counter of a key in a row. */
+    private int slot( int hash, int row ) {
+        int h = hash * (0x9E3779B9 + 2 * row);
+        h ^= h >>> 16;
+        return row * (widthMask + 1) + (h & widthMask);
+    }
+
+    private static int spread( String key ) {
+        int h = key.hashCode() * 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    private int counter( int slot ) {
+        return (int) (counters[slot >>> 4] >>> ((slot & 15) << 2)) & 15;
+    }
+
+    void increment( String key ) {
+        int hash = spread(key);
+        for (int row = 0; row < 4; ++row) {
+            int slot = slot(hash, row);
+            if (counter(slot) < MAX_COUNT) counters[slot >>> 4] += 1L << ((slot & 15) << 2);
+        }
+        if (++increments >= sampleSize) {
+            // halves all counters at once: shifts every 4-bit counter right
+            // and clears the bit shifted in from its neighbour
+            for (int i = 0; i < counters.length; ++i) {
+                counters[i] = (counters[i] >>> 1) & 0x7777777777777777L;
+            }
+            increments /= 2;
+        }
+    }
+
+    /** The estimated number of recent increments of a key. */
+    int frequency( String key ) {
+        int hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < 4; ++row) {
+            frequency = Math.min(frequency, counter(slot(hash, row)));
+        }
+        return frequency;
+    }
+}
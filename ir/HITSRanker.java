@@ -275,15 +275,18 @@ public class HITSRanker {
      * @param      post  The list of postings fulfilling a certain information need
      *
      * @return     A list of postings ranked according to the hub and authority scores.
+     *
+     * The hub and authority scores are kept in the ranker, so queries ranked
+     * on several threads take turns.
      */
-    PostingsList rank(PostingsList post) {
+    synchronized PostingsList rank(PostingsList post) {
         PostingsList answer = new PostingsList();
 
         HashSet<Integer> docID = new HashSet<>();
         HashMap<Integer, Integer> IDtoInternalID = new HashMap<>();
         for (int i = 0; i < post.size(); ++i) {
             int goodID = post.get(i).docID;
-            String name = index.docNames.get(goodID);
+            String name = index.docTable().name(goodID);
             name = name.split("\\\\davisWiki\\\\")[1];
 
             Integer linkFile = titleToId.get(name);
@@ -328,9 +331,11 @@ public class HITSRanker {
 
     public void reverseDocNames() {
         nameToRealID = new HashMap<>();
-        for(Map.Entry<Integer, String> entry : index.docNames.entrySet()) {
-            String name = entry.getValue();
-            nameToRealID.put(name.split("\\\\")[2], entry.getKey());
+        DocumentTable docTable = index.docTable();
+        for (int docID = 0; docID < docTable.size(); ++docID) {
+            String name = docTable.name(docID);
+            if (name == null) continue;
+            nameToRealID.put(name.split("\\\\")[2], docID);
         }
     }
 
@@ -8,13 +8,12 @@
 
 package ir;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -26,6 +25,20 @@ public class HashedIndex implements Index {
     /** The index as a hashtable. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /**
+     *  The doc sets of the dense terms, built the first time they are asked
+     *  for, by any of the threads searching.
+     */
+    private ConcurrentHashMap<String,RoaringDocSet> docSets = new ConcurrentHashMap<String,RoaringDocSet>();
+
+    /** The documents, kept in main memory only. */
+    private DocumentTable docTable = new DocumentTable(null);
+
+
+    public DocumentTable docTable() {
+        return docTable;
+    }
+
 
     /**
      *  Inserts this token in the hashtable.
@@ -42,37 +55,19 @@ public class HashedIndex implements Index {
     }
 
     public void computeEuclideanLength() {
-        int N = docNames.size();
-        for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
-            int df = entry.getValue().size();
-            double idf = Math.log((double) N / df);
-            for (PostingsEntry postingsEntry : entry.getValue().getList()) {
-                Double value = euclideanLength.get(postingsEntry.docID);
-                if (value != null) {
-                    double v = postingsEntry.offsets.size() * idf;
-                    value += Math.pow(v, 2);
-                } else {
-                    value = Math.pow(postingsEntry.offsets.size() * idf, 2);
-                }
-                euclideanLength.put(postingsEntry.docID, value);
-            }
-        }
-
-        StringBuilder s = new StringBuilder();
-        for (Map.Entry<Integer, Double> entry : euclideanLength.entrySet()) {
-            Double v = Math.sqrt(entry.getValue());
-            euclideanLength.put(entry.getKey(), v);
-            s.append(entry.getKey()).append(":").append(v).append("\n");
+        DocumentNorms norms = new DocumentNorms(docTable.size());
+        for (PostingsList postingsList : index.values()) {
+            norms.add(postingsList);
         }
+        norms.writeTo(docTable);
+    }
 
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter("./index/euclidean.txt"));
-            writer.write(s.toString());
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public void remapDocIDs(int[] newID) {
+        for (PostingsList postingsList : index.values()) {
+            postingsList.remapDocIDs(newID);
         }
-
+        docSets.clear();
+        docTable.remapDocIDs(newID);
     }
 
 
@@ -85,6 +80,37 @@ public class HashedIndex implements Index {
     }
 
 
+    /**
+     *  The list in the index is walked as it is, without a copy.
+     */
+    public PostingsCursor getCursor( String token ) {
+        PostingsList postingsList = index.get(token);
+        if (postingsList == null) return null;
+        return postingsList.cursor();
+    }
+
+    public ArrayList<PostingsCursor> getCursors( List<String> tokens ) {
+        ArrayList<PostingsCursor> cursors = new ArrayList<>();
+        for (String token : tokens) {
+            cursors.add(getCursor(token));
+        }
+        return cursors;
+    }
+
+    public RoaringDocSet getDocSet( String token ) {
+        RoaringDocSet docSet = docSets.get(token);
+        if (docSet == null) {
+            PostingsList postingsList = index.get(token);
+            if (postingsList == null || postingsList.size() < RoaringDocSet.DENSE_FRACTION * docTable.size()) {
+                return null;
+            }
+            docSet = RoaringDocSet.of(postingsList);
+            docSets.put(token, docSet);
+        }
+        return docSet;
+    }
+
+
     /**
      *  No need for cleanup in a HashedIndex.
      */
@@ -8,8 +8,9 @@
 package ir;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -17,17 +18,11 @@ import java.util.Iterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
-
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
-
-    /** Mapping from document identifier to its pagerank. */
-    public HashMap<Integer, Double> pageRank = new HashMap<>();
-
-    /** Mapping from document identifier to its euclidean length. */
-    public HashMap<Integer, Double> euclideanLength = new HashMap<>();
+    /**
+     *  The names, lengths, euclidean lengths and pageranks of the documents
+     *  of this index.
+     */
+    public DocumentTable docTable();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
@@ -35,8 +30,35 @@ public interface Index {
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns a cursor over the documents and positions of a term, or
+     *  null if the term is not in the index. Every call returns a new
+     *  cursor.
+     */
+    public PostingsCursor getCursor( String token );
+
+    /**
+     *  Returns the cursors of many terms at once, in the order of
+     *  <code>tokens</code>. A persistent index reads its files in file
+     *  order rather than in the order of the terms.
+     */
+    public ArrayList<PostingsCursor> getCursors( List<String> tokens );
+
+    /**
+     *  Returns the doc set of a term occurring in at least
+     *  RoaringDocSet.DENSE_FRACTION of the documents, null for other terms.
+     */
+    public RoaringDocSet getDocSet( String token );
+
     public void computeEuclideanLength();
 
+    /**
+     *  Renumbers all documents, newID being indexed by the old docID.
+     *  The postings and the document table are rewritten, also on disk.
+     *  Called once all documents have been indexed, after cleanup().
+     */
+    public void remapDocIDs( int[] newID );
+
     /** This method is called on exit. */
     public void cleanup();
 
@@ -0,0 +1,56 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  What a Searcher searches: an index with its biword and forward indexes,
+ *  as they are once built.
+ *
+ *  A snapshot never changes. The engine builds the indexes first and then
+ *  publishes a snapshot of them to the searcher, see Searcher.publish, and
+ *  every query reads the snapshot once and uses it to the end. Queries
+ *  therefore need no lock: they only read the postings, and another
+ *  snapshot can be published at any time without disturbing the queries
+ *  running on the one before.
+ *
+ *  Every snapshot has a generation of its own, larger than those of the
+ *  snapshots made before it, by which results computed on another
+ *  snapshot are told apart, see ResultCache.
+ */
+public final class IndexSnapshot {
+
+    private static final AtomicLong generations = new AtomicLong();
+
+    public final Index index;
+
+    /** The pairs of common words, or null. */
+    public final BiwordIndex biwordIndex;
+
+    /** The term vectors of the documents, or null. */
+    public final ForwardIndex forwardIndex;
+
+    /**
+     *  True when the docIDs were assigned in descending pagerank order, so
+     *  that postings sorted by docID are also sorted by pagerank.
+     */
+    public final boolean pageRankOrdered;
+
+    public final long generation = generations.incrementAndGet();
+
+
+    public IndexSnapshot( Index index, BiwordIndex biwordIndex, ForwardIndex forwardIndex, boolean pageRankOrdered ) {
+        this.index = index;
+        this.biwordIndex = biwordIndex;
+        this.forwardIndex = forwardIndex;
+        this.pageRankOrdered = pageRankOrdered;
+    }
+
+    public IndexSnapshot( Index index ) {
+        this(index, null, null, false);
+    }
+}
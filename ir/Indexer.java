@@ -10,6 +10,7 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
+import java.nio.file.Files;
 
 /**
  * Processes a directory structure and indexes all PDF and text files.
@@ -22,6 +23,15 @@ public class Indexer {
     /** K-gram index to be built up by this Indexer */
     KGramIndex kgIndex;
 
+    /** Biword index to be built up by this Indexer, if any */
+    BiwordIndex biwordIndex;
+
+    /** Forward index to be built up by this Indexer, if any */
+    ForwardIndex forwardIndex;
+
+    /** Store of the texts of the documents, if any */
+    DocumentStore documentStore;
+
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
@@ -65,15 +75,34 @@ public class Indexer {
                         System.err.println("Indexed " + docID + " files");
                     }
                     try {
-                        Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8);
+                        Reader reader;
+                        byte[] text = null;
+                        if (documentStore != null) {
+                            // the file is read once, for the store and for the tokenizer
+                            text = Files.readAllBytes(f.toPath());
+                            reader = new InputStreamReader(new ByteArrayInputStream(text), StandardCharsets.UTF_8);
+                        } else {
+                            reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8);
+                        }
                         Tokenizer tok = new Tokenizer(reader, true, false, true, patterns_file);
                         int offset = 0;
+                        // where the tokens are in the text, for the snippets
+                        int[] charOffsets = new int[text == null ? 0 : 256];
                         while (tok.hasMoreTokens()) {
                             String token = tok.nextToken();
+                            if (text != null) {
+                                if (2 * offset + 1 >= charOffsets.length)
+                                    charOffsets = Arrays.copyOf(charOffsets, 2 * charOffsets.length);
+                                charOffsets[2 * offset] = tok.startOffset();
+                                charOffsets[2 * offset + 1] = tok.endOffset();
+                            }
                             insertIntoIndex(docID, token, offset++);
                         }
-                        index.docNames.put(docID, f.getPath());
-                        index.docLengths.put(docID, offset);
+                        if (text != null)
+                            documentStore.add(docID, text, charOffsets, offset);
+                        index.docTable().add(docID, f.getPath(), offset);
+                        if (forwardIndex != null)
+                            forwardIndex.endDocument(docID);
                         reader.close();
                     } catch (IOException e) {
                         System.err.println("Warning: IOException during indexing.");
@@ -92,5 +121,9 @@ public class Indexer {
         index.insert(token, docID, offset);
         if (kgIndex != null)
             kgIndex.insert(token);
+        if (biwordIndex != null)
+            biwordIndex.insert(token, docID, offset);
+        if (forwardIndex != null)
+            forwardIndex.insert(token);
     }
 }
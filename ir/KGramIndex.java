@@ -9,6 +9,7 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.nio.charset.StandardCharsets;
 
 public class KGramIndex {
@@ -238,6 +239,43 @@ public class KGramIndex {
         return index.getOrDefault(kgram, new ArrayList<>());
     }
 
+    /**
+     * The tokens matching a pattern with '*' wildcards, e.g. "mon*y". The
+     * candidates are the tokens having all k-grams of the fixed parts of the
+     * pattern, which are then checked against the whole pattern.
+     */
+    public ArrayList<String> wildcard(String pattern) {
+        String[] parts = ("^" + pattern + "$").split("\\*", -1);
+        List<KGramPostingsEntry> postings = null;
+        for (String part : parts) {
+            for (String kgram : getKgramsFromToken(part, true)) {
+                postings = postings == null ? getPostings(kgram) : intersect(postings, getPostings(kgram));
+            }
+        }
+        ArrayList<String> candidates = new ArrayList<>();
+        if (postings == null) {
+            // no part is as long as a k-gram
+            candidates.addAll(term2id.keySet());
+        } else {
+            for (KGramPostingsEntry entry : postings) {
+                candidates.add(getTermByID(entry.tokenID));
+            }
+        }
+
+        StringBuilder regex = new StringBuilder();
+        String[] fixed = pattern.split("\\*", -1);
+        for (int i = 0; i < fixed.length; ++i) {
+            if (i > 0) regex.append(".*");
+            regex.append(Pattern.quote(fixed[i]));
+        }
+        Pattern matcher = Pattern.compile(regex.toString());
+        ArrayList<String> tokens = new ArrayList<>();
+        for (String candidate : candidates) {
+            if (matcher.matcher(candidate).matches()) tokens.add(candidate);
+        }
+        return tokens;
+    }
+
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
         return term2id.get(term);
@@ -0,0 +1,94 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ *  Scores a document as a weighted sum of its features: its tf-idf score,
+ *  normalized by the length of the document, and its pagerank.
+ *
+ *  The features are read from the columns of the document table as the
+ *  postings go by, so a combination of them costs about as much as tf-idf
+ *  alone. With shares, every feature is first divided by its sum over all
+ *  documents of the answer; the sums are kept as the documents are scored,
+ *  and the scores are divided by them in finish().
+ */
+public class LinearScorer implements Scorer {
+
+    DocumentTable docTable;
+
+    NormalizationType normalizationType;
+
+    double tfIdfWeight;
+    double pageRankWeight;
+    boolean shares;
+
+    /** With shares, the sums of the features over the documents scored. */
+    private double totalTfIdf = 0;
+    private double totalPageRank = 0;
+
+
+    public LinearScorer( DocumentTable docTable, NormalizationType normalizationType,
+                         double tfIdfWeight, double pageRankWeight, boolean shares ) {
+        this.docTable = docTable;
+        this.normalizationType = normalizationType;
+        this.tfIdfWeight = tfIdfWeight;
+        this.pageRankWeight = pageRankWeight;
+        this.shares = shares;
+    }
+
+    /**
+     *  The scorer of a ranking type: TF_IDF and PAGERANK are one feature,
+     *  COMBINATION is Widf times the share of tf-idf plus Wpr times the
+     *  share of pagerank, and HITS scores nothing, it ranks the answer itself.
+     */
+    public static Scorer of( RankingType rankingType, NormalizationType normalizationType,
+                             DocumentTable docTable, double Widf, double Wpr ) {
+        switch (rankingType) {
+            case TF_IDF:
+                return new LinearScorer(docTable, normalizationType, 1, 0, false);
+            case PAGERANK:
+                return new LinearScorer(docTable, normalizationType, 0, 1, false);
+            case COMBINATION:
+                return new LinearScorer(docTable, normalizationType, Widf, Wpr, true);
+            default:
+                return new LinearScorer(docTable, normalizationType, 0, 0, false);
+        }
+    }
+
+    public boolean usesTerms() {
+        return tfIdfWeight != 0;
+    }
+
+    public double term( int docID, int tf, double idf, double weight ) {
+        if (tfIdfWeight == 0) return 0;
+        double lend;
+        if (normalizationType == NormalizationType.EUCLIDEAN) {
+            lend = docTable.norm(docID);
+        }
+        else lend = docTable.length(docID);
+        return tf * idf / lend * weight;
+    }
+
+    public double document( int docID, double termScore ) {
+        if (shares) {
+            totalTfIdf += termScore;
+            totalPageRank += docTable.pageRank(docID);
+            return termScore;
+        }
+        double score = tfIdfWeight == 1 ? termScore : tfIdfWeight * termScore;
+        if (pageRankWeight != 0) score += pageRankWeight * docTable.pageRank(docID);
+        return score;
+    }
+
+    public void finish( PostingsList answer ) {
+        if (!shares) return;
+        for (int i = 0; i < answer.size(); ++i) {
+            PostingsEntry postingsEntry = answer.get(i);
+            double pagerank = docTable.pageRank(postingsEntry.docID);
+            postingsEntry.score = tfIdfWeight * (postingsEntry.score / totalTfIdf) + pageRankWeight * (pagerank / totalPageRank);
+        }
+    }
+}
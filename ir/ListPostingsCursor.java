@@ -0,0 +1,56 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ *  A cursor over a PostingsList.
+ *
+ *  Nothing is copied: a list read from disk is decoded block by block as
+ *  the cursor moves, and its positions are only read from the positions
+ *  file for the documents asked for.
+ */
+public class ListPostingsCursor implements PostingsCursor {
+
+    private PostingsList postingsList;
+
+    /** Position of the current document in the list, -1 before the first. */
+    private int i = -1;
+
+    public ListPostingsCursor( PostingsList postingsList ) {
+        this.postingsList = postingsList;
+    }
+
+    public int docID() {
+        if (i < 0) return -1;
+        if (i >= postingsList.size()) return NO_MORE_DOCS;
+        return postingsList.get(i).docID;
+    }
+
+    public int nextDoc() {
+        if (i < postingsList.size()) ++i;
+        return docID();
+    }
+
+    public int advance( int target ) {
+        if (i >= 0 && docID() >= target) return docID();
+        i = postingsList.advance(Math.max(i, 0), target);
+        return docID();
+    }
+
+    public int freq() {
+        return postingsList.get(i).tf;
+    }
+
+    public ArrayList<Integer> positions() {
+        return postingsList.offsets(i);
+    }
+
+    public int cost() {
+        return postingsList.size();
+    }
+}
@@ -192,6 +192,36 @@ public class PageRank {
 
     }
 
+    /**
+     * Reads a rank file written by writePageRank ("docID,pagerank" lines).
+     */
+    public static void readRankFile(String rank_file, DocumentTable docTable) {
+        try (BufferedReader br = new BufferedReader(new FileReader(rank_file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] res = line.split(",");
+                docTable.setPageRank(Integer.parseInt(res[0]), Double.parseDouble(res[1]));
+            }
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes pageranks already keyed by docID, in the format of writePageRank.
+     */
+    public static void writeRankFile(DocumentTable docTable, String rank_file) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(rank_file))) {
+            for (int docID = 0; docID < docTable.size(); ++docID) {
+                writer.write(docID + "," + (float) docTable.pageRank(docID) + "\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public String toString() {
         String s = "";
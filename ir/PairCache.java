@@ -0,0 +1,231 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  A cache of the matches of pairs of terms that many queries share: the
+ *  documents containing both terms, for intersection queries, and the
+ *  documents where the second term follows the first, with its positions,
+ *  for phrase queries. A query with a cached pair walks the matches of the
+ *  pair instead of the postings of its two terms, see Searcher.
+ *
+ *  The pairs of every query are counted in a FrequencySketch, and the
+ *  matches of a pair are only computed and cached once it was counted
+ *  ADMIT_FREQUENCY times, so rare pairs cost nothing but their count. Like
+ *  a ResultCache, the matches are marked with the generation of the index
+ *  snapshot, the cache holds at most maxBytes bytes, and evicts the pair
+ *  used least recently.
+ */
+public class PairCache {
+
+    /** The default size of the cache, in bytes. */
+    static final long DEFAULT_BYTES = 16L << 20;
+
+    /** A pair is cached once it has been seen this many times. */
+    static final int ADMIT_FREQUENCY = 2;
+
+    /** Only the pairs of the first this many distinct terms of a query are counted. */
+    static final int MAX_PAIR_TERMS = 8;
+
+    /** The bytes counted for a pair on top of its arrays, for the map entry and the key. */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /** The number of counters of a row of the sketch. */
+    static final int SKETCH_WIDTH = 1 << 16;
+
+    /** The matches of a pair. */
+    static class Pair {
+        final long generation;
+        final int[] docIDs;
+
+        /** The positions of the documents, see ArrayPostingsCursor, or null. */
+        final int[] starts;
+        final int[] positions;
+
+        Pair( long generation, int[] docIDs, int[] starts, int[] positions ) {
+            this.generation = generation;
+            this.docIDs = docIDs;
+            this.starts = starts;
+            this.positions = positions;
+        }
+
+        /**
+         *  The documents of a conjunction of the cursors of two terms.
+         */
+        static Pair of( long generation, Conjunction documents ) {
+            int[] docIDs = new int[16];
+            int n = 0;
+            while (documents.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                if (n == docIDs.length) docIDs = Arrays.copyOf(docIDs, 2 * n);
+                docIDs[n++] = documents.docID();
+            }
+            return new Pair(generation, Arrays.copyOf(docIDs, n), null, null);
+        }
+
+        /**
+         *  The documents of a cursor, e.g. a PhraseCursor, with their positions.
+         */
+        static Pair of( long generation, PostingsCursor cursor ) {
+            int[] docIDs = new int[16];
+            int[] starts = new int[17];
+            int[] positions = new int[16];
+            int n = 0;
+            int p = 0;
+            while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                if (n == docIDs.length) {
+                    docIDs = Arrays.copyOf(docIDs, 2 * n);
+                    starts = Arrays.copyOf(starts, 2 * n + 1);
+                }
+                docIDs[n++] = cursor.docID();
+                ArrayList<Integer> offsets = cursor.positions();
+                if (p + offsets.size() > positions.length) {
+                    positions = Arrays.copyOf(positions, Math.max(2 * positions.length, p + offsets.size()));
+                }
+                for (int offset : offsets) {
+                    positions[p++] = offset;
+                }
+                starts[n] = p;
+            }
+            return new Pair(generation, Arrays.copyOf(docIDs, n), Arrays.copyOf(starts, n + 1), Arrays.copyOf(positions, p));
+        }
+
+        /** A new cursor over the matches. */
+        PostingsCursor cursor() {
+            return positions == null ? new ArrayPostingsCursor(docIDs) : new ArrayPostingsCursor(docIDs, starts, positions);
+        }
+
+        int size() {
+            return docIDs.length;
+        }
+
+        long weight( String key ) {
+            return 2L * key.length() + ENTRY_OVERHEAD + 4L * docIDs.length
+                    + (positions == null ? 0 : 4L * (starts.length + positions.length));
+        }
+    }
+
+    /** The pairs, least recently used first. */
+    private LinkedHashMap<String,Pair> pairs = new LinkedHashMap<>(256, 0.75f, true);
+
+    /** The number of queries of every pair, cached or not. */
+    private FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+
+    private long maxBytes;
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long computed = 0;
+    private long evictions = 0;
+
+    /** The postings of the terms of the pairs used that were not walked. */
+    private long saved = 0;
+
+
+    public PairCache( long maxBytes ) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /** The key of two terms of an intersection, in either order. */
+    static String intersectionKey( String term1, String term2 ) {
+        return term1.compareTo(term2) <= 0 ? "I\t" + term1 + "\t" + term2 : "I\t" + term2 + "\t" + term1;
+    }
+
+    /** The key of two consecutive words of a phrase. */
+    static String phraseKey( String word1, String word2 ) {
+        return "P\t" + word1 + "\t" + word2;
+    }
+
+    /**
+     *  Counts a query of a pair.
+     *
+     *  @return The number of recent queries of the pair, this one included.
+     */
+    synchronized int count( String key ) {
+        if (maxBytes == 0) return 0;
+        sketch.increment(key);
+        return sketch.frequency(key);
+    }
+
+    /**
+     *  The matches of a pair on the given snapshot generation, or null.
+     */
+    synchronized Pair get( String key, long generation ) {
+        if (maxBytes == 0) return null;
+        Pair pair = pairs.get(key);
+        if (pair != null && pair.generation != generation) {
+            remove(key);
+            pair = null;
+        }
+        return pair;
+    }
+
+    synchronized void put( String key, Pair pair ) {
+        long weight = pair.weight(key);
+        ++computed;
+        if (weight > maxBytes) return;
+        remove(key);
+        evict(maxBytes - weight);
+        pairs.put(key, pair);
+        bytes += weight;
+    }
+
+    /**
+     *  Counts a query that used a cached pair, which saved walking
+     *  <code>postings</code> postings.
+     */
+    synchronized void hit( long postings ) {
+        ++hits;
+        saved += Math.max(0, postings);
+    }
+
+    /** Counts a query of two or more terms that used no cached pair. */
+    synchronized void miss() {
+        if (maxBytes > 0) ++misses;
+    }
+
+    private void remove( String key ) {
+        Pair pair = pairs.remove(key);
+        if (pair != null) bytes -= pair.weight(key);
+    }
+
+    /** Evicts the least recently used pairs until at most <code>limit</code> bytes are left. */
+    private void evict( long limit ) {
+        Iterator<Map.Entry<String,Pair>> eldest = pairs.entrySet().iterator();
+        while (bytes > limit && eldest.hasNext()) {
+            Map.Entry<String,Pair> entry = eldest.next();
+            bytes -= entry.getValue().weight(entry.getKey());
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    public synchronized void resize( long maxBytes ) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict(this.maxBytes);
+    }
+
+    public synchronized void clear() {
+        pairs.clear();
+        bytes = 0;
+    }
+
+    /**
+     *  The statistics of the cache, on one line.
+     */
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "pair cache: %d queries used a pair, %d did not, %d postings saved, %d pairs computed, %d evicted, %d pairs in %d of %d bytes",
+                hits, misses, saved, computed, evictions, pairs.size(), bytes, maxBytes);
+    }
+}
@@ -8,7 +8,9 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 
 /*
@@ -36,8 +38,11 @@ public class PersistentHashedIndex implements Index {
     /** The terms file name */
     public static final String TERMS_FNAME = "terms";
 
-    /** The doc info file name */
-    public static final String DOCINFO_FNAME = "docInfo";
+    /** The doc sets file name */
+    public static final String DOCSETS_FNAME = "docsets";
+
+    /** The positions file name */
+    public static final String POSITIONS_FNAME = "positions";
 
     /** The dictionary hash table on disk can fit this many entries. */
     public static final long TABLESIZE = 611953L;
@@ -48,12 +53,30 @@ public class PersistentHashedIndex implements Index {
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** The offsets of the postings are stored in this file. */
+    PositionsFile positions;
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** The doc sets of the dense terms, kept in main memory. */
+    HashMap<String,RoaringDocSet> docSets = new HashMap<String,RoaringDocSet>();
+
+    /** The names, lengths, euclidean lengths and pageranks of the documents. */
+    DocumentTable docTable = new DocumentTable( INDEXDIR );
+
+    /** The postings records of the terms searched most often. */
+    PostingsCache cache = new PostingsCache( PostingsCache.DEFAULT_BYTES );
+
+    /** The records being read into the cache, by term. */
+    final SingleFlight<String,byte[]> loads = new SingleFlight<>();
+
+    /** The euclidean lengths to compute as the index is next written, if asked for. */
+    DocumentNorms norms;
+
     long size_dict = 12;
     long SIZE_DATAFILE;
 
@@ -85,25 +108,23 @@ public class PersistentHashedIndex implements Index {
 
     
     /**
-     *  Constructor. Opens the dictionary file and the data file.
-     *  If these files don't exist, they will be created. 
+     *  Constructor. Opens the dictionary file, the data file and the
+     *  positions file. If these files don't exist, they will be created.
      */
     public PersistentHashedIndex() {
-        File f = new File(INDEXDIR + "/" + DICTIONARY_FNAME);
-        f.createNewFile();
-        File f = new File(INDEXDIR + "/" + DATA_FNAME);
-        f.createNewFile();
         try {
             dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
             dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
             SIZE_DATAFILE = dictionaryFile.length();
         } catch ( IOException e ) {
-            System.out.println("No index found, have to create it....")
+            System.out.println("No index found, have to create it....");
         }
+        positions = new PositionsFile( INDEXDIR + "/" + POSITIONS_FNAME );
+
+        docTable.readIndex();
 
         try {
-            readDocInfo();
-            readEuclideanLength();
+            readDocSets( INDEXDIR );
         } catch ( FileNotFoundException e ) {
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -133,9 +154,8 @@ public class PersistentHashedIndex implements Index {
      */ 
     String readData( long ptr, int size ) {
         try {
-            dataFile.seek( ptr );
             byte[] data = new byte[size];
-            dataFile.readFully( data );
+            PositionsFile.readAt( dataFile, ptr, data );
             return new String(data);
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -175,10 +195,13 @@ public class PersistentHashedIndex implements Index {
     Entry readEntry( long ptr ) {
         Entry entry = new Entry();
         try {
-            dictionaryFile.seek(ptr);
-            entry.ptr = dictionaryFile.readLong();
-            //dictionaryFile.seek(ptr+8);
-            entry.size = dictionaryFile.readInt();
+            // the dictionary is probed by concurrent queries and fetches, see
+            // Searcher.processQuery, so it is read without moving the file pointer
+            byte[] data = new byte[12];
+            PositionsFile.readAt(dictionaryFile, ptr, data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            entry.ptr = buffer.getLong();
+            entry.size = buffer.getInt();
         } catch ( IOException e ) {
             return null;
         }
@@ -188,72 +211,61 @@ public class PersistentHashedIndex implements Index {
 
     // ==================================================================
 
-    /**
-     *  Writes the document names and document lengths to file.
-     *
-     * @throws IOException  { exception_description }
-     */
-    private void writeDocInfo() throws IOException {
-         File f = new File(INDEXDIR + "/docInfo");
-        f.createNewFile();
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
+    public DocumentTable docTable() {
+        return docTable;
     }
 
-
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
-     *
-     * @throws     IOException  { exception_description }
+     *  Writes the doc sets of the dense terms to file.
      */
-    private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(";");
-                docNames.put(new Integer(data[0]), data[1]);
-                docLengths.put(new Integer(data[0]), new Integer(data[2]));
+    void writeDocSets( String dir ) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream( dir + "/" + DOCSETS_FNAME )))) {
+            out.writeInt(docSets.size());
+            for (Map.Entry<String,RoaringDocSet> entry : docSets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
             }
         }
-        freader.close();
     }
 
-    private void readEuclideanLength() throws IOException {
-        File file = new File( INDEXDIR + "/euclidean.txt" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(":");
-                euclideanLength.put(new Integer(data[0]), new Double(data[1]));
+    /**
+     *  Reads the doc sets of the dense terms into main memory.
+     */
+    void readDocSets( String dir ) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream( dir + "/" + DOCSETS_FNAME )))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; ++i) {
+                String token = in.readUTF();
+                docSets.put(token, RoaringDocSet.read(in));
             }
         }
-        freader.close();
     }
 
-
     /**
      *  Write the index to files.
      */
     public void writeIndex() {
+        cache.clear();
         int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
-
-            // Write the dictionary and the postings list
+            // A pointer 0 marks an empty slot in the dictionary, so no
+            // record may start at the very beginning of the data file.
+            if (free == 0L) free = 1L;
+
+            // Write the dictionary and the postings list, the offsets go
+            // to the positions file
+            docSets.clear();
+            positions.clear();
             for (Map.Entry<String, PostingsList> pair : index.entrySet()) {
                 String key = pair.getKey();
                 PostingsList value = pair.getValue();
-                String data = key + "*" + value.toString();
+                if (value.size() >= RoaringDocSet.DENSE_FRACTION * docTable.size()) {
+                    docSets.put(key, RoaringDocSet.of(value));
+                }
+                if (norms != null) norms.add(value);
+                String data = key + "*" + value.encode(positions);
                 int bytesRead = writeData(data, free);
                 if (bytesRead <= 0) continue;
                 Entry entry = new Entry(free, bytesRead);
@@ -270,6 +282,14 @@ public class PersistentHashedIndex implements Index {
                 writeEntry(entry, hash);
                 //System.err.println(entry.collisions);
             }
+            positions.flush();
+            writeDocSets( INDEXDIR );
+            if (norms != null) {
+                norms.writeTo(docTable);
+                norms = null;
+            }
+            // Write the names, lengths and norms of the documents
+            docTable.writeIndex();
         } catch ( IOException e ) {
             e.printStackTrace();
         }
@@ -285,16 +305,21 @@ public class PersistentHashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
+        byte[] record = cache.get(token);
+        if (record != null) {
+            String data = new String(record);
+            return new PostingsList(data.substring(data.indexOf('*') + 1), positions);
+        }
         long pointer = hashcode(token);
         int coll = 0;
         while (true) {
             Entry entry = readEntry(pointer);
             if (entry.ptr == 0) break;
             String data = readData(entry.ptr, entry.size);
-            String[] info = data.split("\\*");
-            String word = info[0];
-            if (word.equals(token)) {
-                return new PostingsList(info[1]);
+            int sep = data.indexOf('*');
+            if (data.substring(0, sep).equals(token)) {
+                if (cache.admits(token, entry.size)) cache.put(token, data.getBytes());
+                return new PostingsList(data.substring(sep + 1), positions);
             }
             ++coll;
             pointer += size_dict;
@@ -302,6 +327,161 @@ public class PersistentHashedIndex implements Index {
         return null;
     }
 
+    /**
+     *  Calls <code>action</code> on the postings list of every term stored
+     *  on disk. The dictionary file is read sequentially.
+     */
+    public void forEachPostings( BiConsumer<String,PostingsList> action ) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream( INDEXDIR + "/" + DICTIONARY_FNAME )))) {
+            long entries = dictionaryFile.length() / size_dict;
+            for (long i = 0; i < entries; ++i) {
+                long ptr = in.readLong();
+                int size = in.readInt();
+                if (ptr == 0) continue;
+                String data = readData(ptr, size);
+                int sep = data.indexOf('*');
+                action.accept(data.substring(0, sep), new PostingsList(data.substring(sep + 1), positions));
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Returns a cursor reading the postings of a term from the data file,
+     *  or from the cache. Only the term and the skip header of the records
+     *  probed are read, unless the record found is to be cached.
+     */
+    public PostingsCursor getCursor( String token ) {
+        long pointer = hashcode(token);
+        try {
+            DiskPostingsCursor cached = cachedCursor(token);
+            if (cached != null) return cached;
+            while (true) {
+                Entry entry = dictionaryEntry(pointer);
+                if (entry == null || entry.ptr == 0) return null;
+                DiskPostingsCursor cursor = openCursor(entry, token);
+                if (cursor != null) return cache(token, cursor);
+                pointer = nextSlot(pointer);
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     *  Opens the cursors of many terms with two sweeps over the files: the
+     *  dictionary slots of all terms are read in file order, then their
+     *  records, each with its first block. A term probed on past its slot
+     *  is looked up with getCursor().
+     */
+    public ArrayList<PostingsCursor> getCursors( List<String> tokens ) {
+        int n = tokens.size();
+        long[] slot = new long[n];
+        Entry[] entries = new Entry[n];
+        Integer[] order = new Integer[n];
+        for (int t = 0; t < n; ++t) {
+            slot[t] = hashcode(tokens.get(t));
+            order[t] = t;
+        }
+        Arrays.sort(order, (t1, t2) -> Long.compare(slot[t1], slot[t2]));
+        ArrayList<PostingsCursor> cursors = new ArrayList<>(Collections.nCopies(n, (PostingsCursor) null));
+        boolean[] cached = new boolean[n];
+        for (int t : order) {
+            try {
+                DiskPostingsCursor cursor = cachedCursor(tokens.get(t));
+                if (cursor != null) {
+                    cursors.set(t, cursor);
+                    cached[t] = true;
+                    continue;
+                }
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+            entries[t] = dictionaryEntry(slot[t]);
+        }
+        Arrays.sort(order, (t1, t2) -> Long.compare(entries[t1] == null ? 0 : entries[t1].ptr,
+                entries[t2] == null ? 0 : entries[t2].ptr));
+
+        try {
+            for (int t : order) {
+                if (cached[t] || entries[t] == null || entries[t].ptr == 0) continue;
+                DiskPostingsCursor cursor = openCursor(entries[t], tokens.get(t));
+                if (cursor == null) {
+                    cursors.set(t, getCursor(tokens.get(t)));
+                } else {
+                    cursor = cache(tokens.get(t), cursor);
+                    cursor.prefetch();
+                    cursors.set(t, cursor);
+                }
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        return cursors;
+    }
+
+    /** The entry of the dictionary slot at <code>ptr</code>. */
+    Entry dictionaryEntry( long ptr ) {
+        return readEntry(ptr);
+    }
+
+    /** The slot probed after the one at <code>ptr</code> on a collision. */
+    long nextSlot( long ptr ) {
+        return ptr + size_dict;
+    }
+
+    /**
+     *  Opens a cursor on the record of a dictionary entry, or returns null
+     *  if the record is not the one of <code>token</code>.
+     */
+    DiskPostingsCursor openCursor( Entry entry, String token ) throws IOException {
+        return DiskPostingsCursor.open(dataFile, entry.ptr, entry.size, token, positions);
+    }
+
+    /** A cursor on the cached record of a term, or null if it is not cached. */
+    DiskPostingsCursor cachedCursor( String token ) throws IOException {
+        byte[] record = cache.get(token);
+        return record == null ? null : DiskPostingsCursor.open(record, token, positions);
+    }
+
+    /**
+     *  Caches the record of a cursor just opened on the data file, if the
+     *  cache admits it, and returns a cursor on the cached record then. A
+     *  record missed by several queries at once, e.g. on the fetch threads
+     *  of Searcher.processQuery, is read by one of them for all.
+     */
+    DiskPostingsCursor cache( String token, DiskPostingsCursor cursor ) throws IOException {
+        if (!cache.admits(token, cursor.recordLength())) return cursor;
+        byte[] record;
+        try {
+            record = loads.run(token, () -> {
+                byte[] read = cursor.readRecord();
+                cache.put(token, read);
+                return read;
+            });
+        } catch ( IOException e ) {
+            throw e;
+        } catch ( InterruptedException e ) {
+            // given up waiting for another query to read it
+            Thread.currentThread().interrupt();
+            return cursor;
+        } catch ( Exception e ) {
+            throw new IOException(e);
+        }
+        return DiskPostingsCursor.open(record, token, positions);
+    }
+
+    public PostingsCache getCache() {
+        return cache;
+    }
+
+    public RoaringDocSet getDocSet( String token ) {
+        return docSets.get(token);
+    }
+
     public PostingsList getPostingsMemory( String token ) {
         return index.get(token);
     }
@@ -326,41 +506,39 @@ public class PersistentHashedIndex implements Index {
         return hash*size_dict;
     }
 
+    /**
+     *  The euclidean lengths are computed from the postings as they are
+     *  written to disk in cleanup(), instead of in a pass of their own, and
+     *  go to the document table written with them.
+     */
     public void computeEuclideanLength() {
-        int N = docNames.size();
-        for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
-            int df = entry.getValue().size();
-            double idf = Math.log((double) N / df);
-            for (PostingsEntry postingsEntry : entry.getValue().getList()) {
-                Double value = euclideanLength.get(postingsEntry.docID);
-                if (value != null) {
-                    double v = postingsEntry.offsets.size() * idf;
-                    value += Math.pow(v, 2);
-                } else {
-                    value = Math.pow(postingsEntry.offsets.size() * idf, 2);
-                }
-                euclideanLength.put(postingsEntry.docID, value);
-            }
-        }
+        norms = new DocumentNorms(docTable.size());
+    }
 
-        StringBuilder s = new StringBuilder();
-        for (Map.Entry<Integer, Double> entry : euclideanLength.entrySet()) {
-            Double v = Math.sqrt(entry.getValue());
-            euclideanLength.put(entry.getKey(), v);
-            s.append(entry.getKey()).append(":").append(v).append("\n");
-        }
 
+    /**
+     *  Renumbers the documents and writes the index to disk again.
+     *  The postings are still in the main-memory hash map after cleanup();
+     *  for an index loaded from disk they are read back first, with their
+     *  offsets, since the positions file is written again as well.
+     */
+    public void remapDocIDs( int[] newID ) {
+        if (index.isEmpty()) {
+            forEachPostings(index::put);
+        }
+        for (PostingsList postingsList : index.values()) {
+            postingsList.loadPositions();
+            postingsList.remapDocIDs(newID);
+        }
+        docTable.remapDocIDs(newID);
         try {
-            File f = new File(INDEXDIR + "/filename.txt");
-            f.createNewFile();
-
-            BufferedWriter writer = new BufferedWriter(new FileWriter(INDEXDIR + "/euclidean.txt"));
-            writer.write(s.toString());
-            writer.close();
-        } catch (IOException e) {
+            dictionaryFile.setLength(0);
+            dataFile.setLength(0);
+        } catch ( IOException e ) {
             e.printStackTrace();
         }
-
+        free = 0L;
+        writeIndex();
     }
 
 
@@ -1,9 +1,11 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 public class PersistentScalableHashedIndex extends PersistentHashedIndex {
 
@@ -27,10 +29,10 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
     public static int totalTokensProcessed = 0;
 
     /** The dictionary hash table is stored in this file. */
-    RandomAccessFile dictionaryFileFinal;
+    volatile RandomAccessFile dictionaryFileFinal;
 
     /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFileFinal;
+    volatile RandomAccessFile dataFileFinal;
 
     /** The cache as a main-memory hash map. */
     TreeMap<String,PostingsList> index = new TreeMap<>();
@@ -213,54 +215,35 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
 
     public PersistentScalableHashedIndex() {
         try {
-            readDocInfo();
-        } catch ( FileNotFoundException e ) {
+            positions.close();
         } catch ( IOException e ) {
             e.printStackTrace();
         }
-    }
+        positions = new PositionsFile( INDEXDIR + "/" + POSITIONS_FNAME );
 
+        docTable = new DocumentTable( INDEXDIR );
+        docTable.readIndex();
 
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo", true );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
+        docSets.clear();
+        try {
+            readDocSets( INDEXDIR );
+        } catch ( FileNotFoundException e ) {
+        } catch ( IOException e ) {
+            e.printStackTrace();
         }
-        fout.close();
     }
 
-    /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
-     *
-     * @throws     IOException  { exception_description }
-     */
-    private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(";");
-                docNames.put(new Integer(data[0]), data[1]);
-                docLengths.put(new Integer(data[0]), new Integer(data[2]));
-            }
-        }
-        freader.close();
-    }
 
     /**
      *  Reads data from the data file
      */
     static Pair readData(long ptr, RandomAccessFile datafile) {
         try {
-            datafile.seek(ptr);
-            int size = datafile.readInt();
-            byte[] data = new byte[size];
-            datafile.readFully( data );
-            return new Pair(new String(data), size + 4);
+            byte[] length = new byte[4];
+            PositionsFile.readAt(datafile, ptr, length);
+            byte[] data = new byte[ByteBuffer.wrap(length).getInt()];
+            PositionsFile.readAt(datafile, ptr + 4, data);
+            return new Pair(new String(data), data.length + 4);
         } catch ( IOException e ) {
             e.printStackTrace();
             return null;
@@ -295,10 +278,10 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
 
         try {
             RandomAccessFile dataFile = new RandomAccessFile( INDEXDIR + "/" + name, "rw" );
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
 
-            // Write the dictionary and the postings list
+            // Write the dictionary and the postings list. The intermediate
+            // files keep the offsets inline, they are only split off in
+            // the final data file.
             for (Map.Entry<String, PostingsList> pair : index.entrySet()) {
                 String key = pair.getKey();
                 PostingsList value = pair.getValue();
@@ -318,14 +301,11 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
             // let me delete all the files and make sure its all good
             new File(INDEXDIR + "/" + DATA_FNAME).delete();
             new File(INDEXDIR + "/" + DICTIONARY_FNAME).delete();
-            new File( INDEXDIR + "/docInfo").delete();
         }
         writeIndexToDatafile();
         totalTokensProcessed += index.size();
         System.err.println("Total number of tokens " + totalTokensProcessed);
         index.clear();
-        docLengths.clear();
-        docNames.clear();
         number_of_tokens_treated = 0;
         free = 0;
         if (filesWritten != 0) {
@@ -386,25 +366,45 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
     Entry readEntry( long ptr, RandomAccessFile datafile ) {
         Entry entry = new Entry();
         try {
-            datafile.seek(ptr);
-            entry.ptr = datafile.readLong();
+            byte[] data = new byte[8];
+            PositionsFile.readAt(datafile, ptr, data);
+            entry.ptr = ByteBuffer.wrap(data).getLong();
         } catch ( IOException e ) {
             return null;
         }
         return entry;
     }
 
-    private void writeDictionaryFile() throws IOException {
-        RandomAccessFile datafile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "r" );
+    /**
+     *  Writes the final index from a merged file: the data file, with the
+     *  offsets split off to the positions file, the dictionary and the doc
+     *  sets. The source file is deleted afterwards.
+     */
+    private void writeFinalIndex(String source) throws IOException {
+        cache.clear();
+        RandomAccessFile sourcefile = new RandomAccessFile( INDEXDIR + "/" + source, "r" );
+        RandomAccessFile datafile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
         RandomAccessFile dictionaryFileFinal = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
+        datafile.setLength(0);
+        dictionaryFileFinal.setLength(0);
+        positions.clear();
 
-        // do the merge to destination
         long pos = 0;
-        while (pos < datafile.length()) {
-            Pair data = readData(pos, datafile);
-            String token = data.data.split("\\*")[0];
+        // a pointer 0 marks an empty slot in the dictionary
+        long freeD = 1;
+        docSets.clear();
+        while (pos < sourcefile.length()) {
+            Pair data = readData(pos, sourcefile);
+            int sep = data.data.indexOf('*');
+            String token = data.data.substring(0, sep);
+            PostingsList postingsList = new PostingsList(data.data.substring(sep + 1));
+            if (norms != null) norms.add(postingsList);
+            if (postingsList.size() >= RoaringDocSet.DENSE_FRACTION * docTable.size()) {
+                docSets.put(token, RoaringDocSet.of(postingsList));
+            }
+            int bytesWritten = writeDataWithLength(token + "*" + postingsList.encode(positions), freeD, datafile);
 
-            Entry entry = new Entry(pos);
+            Entry entry = new Entry(freeD);
             long hash = hashcode(token);
 
             Entry position = readEntry(hash, dictionaryFileFinal);
@@ -413,50 +413,139 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
                 position = readEntry(hash, dictionaryFileFinal);
             }
             writeEntry(entry, hash, dictionaryFileFinal);
+            freeD += bytesWritten + 1;
             pos += data.size + 1;
         }
+        positions.flush();
+        sourcefile.close();
+        datafile.close();
         dictionaryFileFinal.close();
+        new File(INDEXDIR + "/" + source).delete();
+        writeDocSets( INDEXDIR );
+        if (norms != null) {
+            norms.writeTo(docTable);
+            norms = null;
+        }
+        docTable.writeIndex();
 
     }
 
-    public PostingsList getPostings( String token ) {
-        if (dictionaryFileFinal == null) {
-            try {
-                dictionaryFileFinal = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "r" );
-                dataFileFinal = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "r" );
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+    /**
+     *  Opens the final files the first time they are read. Every query
+     *  calls this, so it only locks while they are not open yet.
+     */
+    private void openFinalFiles() {
+        if (dataFileFinal != null) return;
+        synchronized (this) {
+            if (dataFileFinal == null) {
+                try {
+                    dictionaryFileFinal = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "r" );
+                    dataFileFinal = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "r" );
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
+                }
             }
         }
+    }
+
+    public PostingsList getPostings( String token ) {
+        byte[] record = cache.get(token);
+        if (record != null) {
+            String data = new String(record);
+            return new PostingsList(data.substring(data.indexOf('*') + 1), positions);
+        }
+        openFinalFiles();
         long pointer = hashcode(token);
-        int coll = 0;
         while (true) {
             Entry entry = readEntry(pointer, dictionaryFileFinal);
             if (entry.ptr == 0) break;
             Pair data = readData(entry.ptr, dataFileFinal);
-            String[] info = data.data.split("\\*");
-            String word = info[0];
-            if (word.equals(token)) {
-                System.out.println(coll);
-                return new PostingsList(info[1]);
+            int sep = data.data.indexOf('*');
+            if (data.data.substring(0, sep).equals(token)) {
+                if (cache.admits(token, data.size - 4)) cache.put(token, data.data.getBytes());
+                return new PostingsList(data.data.substring(sep + 1), positions);
             }
-            ++coll;
             pointer += size_dict;
         }
-        System.out.println(coll);
         return null;
     }
 
+    /**
+     *  The final dictionary and data files are read by getCursor() and
+     *  getCursors() of PersistentHashedIndex. A record of the final data
+     *  file starts with its length.
+     */
+    Entry dictionaryEntry( long ptr ) {
+        openFinalFiles();
+        return readEntry(ptr, dictionaryFileFinal);
+    }
+
+    long nextSlot( long ptr ) {
+        return ptr + size_dict;
+    }
+
+    DiskPostingsCursor openCursor( Entry entry, String token ) throws IOException {
+        byte[] length = new byte[4];
+        PositionsFile.readAt(dataFileFinal, entry.ptr, length);
+        int size = ByteBuffer.wrap(length).getInt();
+        return DiskPostingsCursor.open(dataFileFinal, entry.ptr + 4, size, token, positions);
+    }
+
+    /**
+     *  Calls <code>action</code> on the postings list of every term, reading
+     *  the final data file sequentially.
+     */
+    public void forEachPostings(BiConsumer<String, PostingsList> action) {
+        try (RandomAccessFile datafile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "r" )) {
+            long pos = 1;
+            while (pos < datafile.length()) {
+                Pair data = readData(pos, datafile);
+                int sep = data.data.indexOf('*');
+                action.accept(data.data.substring(0, sep), new PostingsList(data.data.substring(sep + 1), positions));
+                pos += data.size + 1;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Renumbers the documents of the merged index. The postings are
+     *  rewritten record by record, with their offsets, to a merged file from
+     *  which the final index is written again, then the document table.
+     */
+    public void remapDocIDs(int[] newID) {
+        try {
+            RandomAccessFile destination = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + "R", "rw" );
+            long[] freeD = { 0 };
+            forEachPostings((token, postingsList) -> {
+                postingsList.loadPositions();
+                postingsList.remapDocIDs(newID);
+                int bytesWritten = writeDataWithLength(token + "*" + postingsList.toString(), freeD[0], destination);
+                freeD[0] += bytesWritten + 1;
+            });
+            destination.close();
+            if (dataFileFinal != null) {
+                dataFileFinal.close();
+                dictionaryFileFinal.close();
+                dataFileFinal = null;
+                dictionaryFileFinal = null;
+            }
+            writeFinalIndex(DATA_FNAME + "R");
+            docTable.remapDocIDs(newID);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void cleanup() {
         System.err.println( "clean up... ");
         try {
             handle();
-            merge.join();
-            new File(INDEXDIR + "/" + DATA_FNAME + "M" + mergeStep).renameTo(new File(INDEXDIR + "/" + DATA_FNAME));
+            if (merge != null) merge.join();
             System.err.println("Creating dictionary file");
             long startTime = System.currentTimeMillis();
-            writeDictionaryFile();
-            readDocInfo();
+            writeFinalIndex(DATA_FNAME + "M" + mergeStep);
             long elapsedTime = System.currentTimeMillis() - startTime;
             System.err.println("time to write dictionari " + elapsedTime/1000.0);
         } catch (IOException | InterruptedException e) {
@@ -471,8 +560,12 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
         return hash*size_dict;
     }
 
+    /**
+     *  The euclidean lengths are computed from the postings as the last
+     *  merged file streams into the final index in cleanup().
+     */
     public void computeEuclideanLength() {
-
+        norms = new DocumentNorms(docTable.size());
     }
 
 }
@@ -0,0 +1,110 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ *  Streams the documents containing a phrase.
+ *
+ *  The phrase is covered by a sequence of cursors, of single words or of
+ *  word pairs, each with the position in the phrase of the word its
+ *  positions are those of. The documents containing all of them are
+ *  walked with a Conjunction, and in every one the positions are joined
+ *  cursor by cursor. The positions of the cursor are those of the last
+ *  word of the phrase.
+ */
+public class PhraseCursor implements PostingsCursor {
+
+    private PostingsCursor[] cursors;
+
+    /** For every cursor, the position in the phrase of its word. */
+    private int[] ends;
+
+    private Conjunction documents;
+
+    private int docID = -1;
+
+    /** The positions of the phrase in the current document. */
+    private ArrayList<Integer> positions;
+
+    public PhraseCursor( PostingsCursor[] cursors, int[] ends ) {
+        this.cursors = cursors;
+        this.ends = ends;
+        this.documents = new Conjunction(cursors);
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        return match(documents.nextDoc());
+    }
+
+    public int advance( int target ) {
+        if (docID >= target) return docID;
+        return match(documents.advance(target));
+    }
+
+    /**
+     *  The first document from <code>d</code> on where the positions join.
+     */
+    private int match( int d ) {
+        while (d != NO_MORE_DOCS) {
+            positions = new ArrayList<>(cursors[0].positions());
+            for (int i = 1; i < cursors.length && !positions.isEmpty(); ++i) {
+                positions = joinPositions(positions, cursors[i].positions(), ends[i] - ends[i - 1]);
+            }
+            if (!positions.isEmpty()) {
+                docID = d;
+                return docID;
+            }
+            d = documents.nextDoc();
+        }
+        positions = null;
+        docID = NO_MORE_DOCS;
+        return docID;
+    }
+
+    public int freq() {
+        return positions.size();
+    }
+
+    public ArrayList<Integer> positions() {
+        return positions;
+    }
+
+    public int cost() {
+        return documents.cost();
+    }
+
+    /**
+     *  The positions in offset2 that are <code>gap</code> words after a
+     *  position in offset1.
+     */
+    static ArrayList<Integer> joinPositions( ArrayList<Integer> offset1, ArrayList<Integer> offset2, int gap ) {
+        int i = 0;
+        int j = 0;
+        ArrayList<Integer> words_post = new ArrayList<>();
+        while (i < offset1.size() && j < offset2.size()) {
+            int diff = offset1.get(i) - offset2.get(j);
+
+            if (diff == -gap) {
+                words_post.add(offset2.get(j));
+                ++i;
+                ++j;
+            } else if (diff < -gap) {
+                // gallop to the word gap words before offset2[j]
+                i = PostingsList.gallop(offset1, i + 1, offset2.get(j) - gap);
+            } else {
+                // gallop to the word gap words after offset1[i]
+                j = PostingsList.gallop(offset2, j + 1, offset1.get(i) + gap);
+            }
+        }
+        return words_post;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  The positions stream of a persistent index.
+ *
+ *  The offsets of every posting are kept in this file, as 4-byte ints,
+ *  apart from the docIDs and term frequencies in the data file. Only
+ *  phrase queries read them, and only for the documents they need.
+ *
+ *  Reads go to a position of the file without moving its file pointer, see
+ *  readAt, so that the queries of many threads read at once without a lock.
+ */
+public class PositionsFile {
+
+    /** Appends are buffered up to this many bytes. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private RandomAccessFile file;
+
+    /** Appended offsets not yet written to the file. */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(pending);
+
+    /** Size of the file, including the pending bytes. */
+    private long size = 0L;
+
+    /** Size of the file without the pending bytes. */
+    private volatile long flushed = 0L;
+
+    public PositionsFile( String fname ) {
+        try {
+            file = new RandomAccessFile( fname, "rw" );
+            size = file.length();
+            flushed = size;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Empties the file before the index is written again.
+     */
+    public synchronized void clear() throws IOException {
+        pending.reset();
+        file.setLength(0);
+        size = 0L;
+        flushed = 0L;
+    }
+
+    /**
+     *  Appends the offsets of one posting.
+     *
+     *  @return Where the offsets start in the file.
+     */
+    public synchronized long write( List<Integer> offsets ) throws IOException {
+        long ptr = size;
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        size += 4L * offsets.size();
+        if (pending.size() >= BUFFER_SIZE) flush();
+        return ptr;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (pending.size() == 0) return;
+        file.seek(size - pending.size());
+        file.write(pending.toByteArray());
+        pending.reset();
+        flushed = size;
+    }
+
+    /**
+     *  Reads the <code>tf</code> offsets of a posting starting at <code>ptr</code>.
+     */
+    public ArrayList<Integer> read( long ptr, int tf ) {
+        try {
+            if (ptr + 4L * tf > flushed) {
+                synchronized (this) {
+                    flush();
+                }
+            }
+            byte[] data = new byte[4 * tf];
+            readAt(file, ptr, data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            ArrayList<Integer> offsets = new ArrayList<>(tf);
+            for (int i = 0; i < tf; ++i) {
+                offsets.add(buffer.getInt());
+            }
+            return offsets;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     *  Reads <code>data.length</code> bytes at <code>ptr</code> of a file.
+     *  The file pointer does not move, so concurrent reads need no lock.
+     */
+    static void readAt( RandomAccessFile file, long ptr, byte[] data ) throws IOException {
+        FileChannel channel = file.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, ptr + buffer.position()) < 0) throw new EOFException();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
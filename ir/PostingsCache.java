@@ -0,0 +1,181 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  A cache of the postings records of a persistent index, by term, so that
+ *  the terms of most queries are searched without going to disk. The
+ *  records are kept as they are stored in the data file, "token*header|
+ *  entries" (see PostingsList.encode), and a DiskPostingsCursor reads them
+ *  from memory just as it would from the file.
+ *
+ *  The cache holds at most maxBytes bytes, and evicts the record used
+ *  least recently. A record is only admitted in place of the ones it would
+ *  evict if its term was looked up more often than theirs (TinyLFU): the
+ *  lookups are counted for all terms, cached or not, in a FrequencySketch
+ *  which follows the recent queries. A term looked up once, e.g. by a
+ *  wildcard expansion, thus does not push out the terms of the common
+ *  queries.
+ */
+public class PostingsCache {
+
+    /** The default size of the cache, in bytes. */
+    static final long DEFAULT_BYTES = 64L << 20;
+
+    /** A record larger than this fraction of the cache is never cached. */
+    static final int MAX_RECORD_FRACTION = 8;
+
+    /** The bytes counted for a record on top of its own, for the map entry and the term. */
+    static final int ENTRY_OVERHEAD = 96;
+
+    /** Admitting a record may evict at most this many others. */
+    static final int MAX_VICTIMS = 16;
+
+    /** The records, least recently used first. */
+    private LinkedHashMap<String,byte[]> records = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long maxBytes;
+    private long bytes = 0;
+
+    /** The number of lookups of every term, cached or not. */
+    private FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long admissions = 0;
+    private long rejections = 0;
+    private long evictions = 0;
+
+
+    public PostingsCache( long maxBytes ) {
+        resize(maxBytes);
+    }
+
+    /**
+     *  Sets the size of the cache, evicting records until they fit. The
+     *  sketch is sized to count about as many terms as would fit if the
+     *  records were 1 kB, and starts over.
+     */
+    public synchronized void resize( long maxBytes ) {
+        this.maxBytes = Math.max(0, maxBytes);
+        int width = 1024;
+        while (width < (1 << 20) && width < this.maxBytes / 1024) {
+            width <<= 1;
+        }
+        sketch = new FrequencySketch(width);
+        evict(this.maxBytes);
+    }
+
+    /**
+     *  Returns the record of a term, or null if it is not cached. Every
+     *  lookup is counted for the admission of the term.
+     */
+    public synchronized byte[] get( String token ) {
+        if (maxBytes == 0) return null;
+        sketch.increment(token);
+        byte[] record = records.get(token);
+        if (record == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return record;
+    }
+
+    /**
+     *  Whether a record of <code>length</code> bytes of a term just missed
+     *  would be cached, i.e. if it is worth reading the whole record.
+     */
+    public synchronized boolean admits( String token, int length ) {
+        if (maxBytes == 0) return false;
+        if (victims(token, weight(token, length)) != null) return true;
+        ++rejections;
+        return false;
+    }
+
+    /**
+     *  Caches the record of a term, if it is still admitted, in place of
+     *  the records it was compared with.
+     */
+    public synchronized void put( String token, byte[] record ) {
+        long weight = weight(token, record.length);
+        if (records.containsKey(token)) return;
+        ArrayList<String> victims = victims(token, weight);
+        if (victims == null) {
+            ++rejections;
+            return;
+        }
+        for (String victim : victims) {
+            bytes -= weight(victim, records.remove(victim).length);
+            ++evictions;
+        }
+        records.put(token, record);
+        bytes += weight;
+        ++admissions;
+    }
+
+    public synchronized void clear() {
+        records.clear();
+        bytes = 0;
+    }
+
+    private static long weight( String token, int length ) {
+        return length + 2L * token.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     *  The records to evict for a record of the given weight to fit, least
+     *  recently used first, or null if it does not beat all of them on the
+     *  number of lookups of their terms. The map is only iterated here, as
+     *  a get() would move the record it finds to the end.
+     */
+    private ArrayList<String> victims( String token, long weight ) {
+        if (weight > maxBytes / MAX_RECORD_FRACTION) return null;
+        ArrayList<String> victims = new ArrayList<>();
+        long room = maxBytes - bytes;
+        if (weight <= room) return victims;
+        int frequency = sketch.frequency(token);
+        Iterator<Map.Entry<String,byte[]>> eldest = records.entrySet().iterator();
+        while (victims.size() < MAX_VICTIMS && eldest.hasNext()) {
+            Map.Entry<String,byte[]> victim = eldest.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) return null;
+            victims.add(victim.getKey());
+            room += weight(victim.getKey(), victim.getValue().length);
+            if (weight <= room) return victims;
+        }
+        return null;
+    }
+
+    /** Evicts the least recently used records until at most <code>limit</code> bytes are left. */
+    private void evict( long limit ) {
+        Iterator<Map.Entry<String,byte[]>> eldest = records.entrySet().iterator();
+        while (bytes > limit && eldest.hasNext()) {
+            Map.Entry<String,byte[]> entry = eldest.next();
+            bytes -= weight(entry.getKey(), entry.getValue().length);
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    public synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     *  The statistics of the cache, on one line.
+     */
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "postings cache: %d hits, %d misses, hit ratio %.3f, %d admitted, %d rejected, %d evicted, %d records in %d of %d bytes",
+                hits, misses, hitRatio(), admissions, rejections, evictions, records.size(), bytes, maxBytes);
+    }
+}
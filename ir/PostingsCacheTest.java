@@ -0,0 +1,101 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ *  Checks the admission and eviction of PostingsCache when a record needs
+ *  room of several others:
+ *
+ *      java ir.PostingsCacheTest
+ *
+ *  prints the checks that failed, if any, and exits with status 1 then.
+ */
+public class PostingsCacheTest {
+
+    int failures = 0;
+
+    void check( boolean ok, String what ) {
+        if (!ok) {
+            System.err.println("FAILED: " + what);
+            ++failures;
+        }
+    }
+
+    /**
+     *  A cache of 64 kB filled with records of 900 bytes looked up once,
+     *  the least recently used first.
+     */
+    PostingsCache filled( ArrayList<String> terms ) {
+        PostingsCache cache = new PostingsCache(64 * 1024);
+        for (int t = 0; ; ++t) {
+            String term = "cold" + t;
+            if (cache.get(term) != null || !cache.admits(term, 900)) break;
+            cache.put(term, new byte[900]);
+            terms.add(term);
+        }
+        return cache;
+    }
+
+    /** Looks a term up <code>times</code> times. */
+    static void lookUp( PostingsCache cache, String term, int times ) {
+        for (int i = 0; i < times; ++i) {
+            cache.get(term);
+        }
+    }
+
+    /**
+     *  A frequent record of 3000 bytes replaces exactly the eldest records
+     *  it needs the room of.
+     */
+    void admitsOverSeveralVictims() {
+        ArrayList<String> terms = new ArrayList<>();
+        PostingsCache cache = filled(terms);
+        lookUp(cache, "hot", 5);
+        check(cache.admits("hot", 3000), "a frequent record is admitted");
+        cache.put("hot", new byte[3000]);
+        check(cache.get("hot") != null, "the frequent record is cached");
+        int evicted = 0;
+        while (evicted < terms.size() && cache.get(terms.get(evicted)) == null) {
+            ++evicted;
+        }
+        check(evicted >= 3, "at least three records are evicted, not " + evicted);
+        for (int t = evicted; t < terms.size(); ++t) {
+            check(cache.get(terms.get(t)) != null, "record " + terms.get(t) + " is kept");
+        }
+    }
+
+    /**
+     *  A record is rejected if one of the records it would evict was looked
+     *  up more often, and nothing is evicted then.
+     */
+    void rejectsOverAFrequentVictim() {
+        ArrayList<String> terms = new ArrayList<>();
+        PostingsCache cache = filled(terms);
+        // cold1 is looked up often, then the later records once more, so
+        // that cold1 is the second least recently used again
+        lookUp(cache, terms.get(1), 5);
+        for (int t = 2; t < terms.size(); ++t) {
+            cache.get(terms.get(t));
+        }
+        lookUp(cache, "warm", 3);
+        check(!cache.admits("warm", 3000), "a record less frequent than a victim is rejected");
+        cache.put("warm", new byte[3000]);
+        check(cache.get("warm") == null, "the rejected record is not cached");
+        for (String term : terms) {
+            check(cache.get(term) != null, "record " + term + " is kept");
+        }
+    }
+
+    public static void main( String[] args ) {
+        PostingsCacheTest test = new PostingsCacheTest();
+        test.admitsOverSeveralVictims();
+        test.rejectsOverAFrequentVictim();
+        if (test.failures > 0) System.exit(1);
+        System.err.println("PostingsCacheTest: all checks passed");
+    }
+}
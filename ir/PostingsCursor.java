@@ -0,0 +1,47 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ *  Walks the postings of a term in docID order.
+ *
+ *  A cursor starts before the first document; nextDoc() or advance() move
+ *  it on. Only what the cursor moves over is decoded, so a consumer that
+ *  skips with advance() or stops early never pays for the rest of the
+ *  list. For a persistent index this also means that only the blocks
+ *  visited are read from disk.
+ */
+public interface PostingsCursor {
+
+    /** Returned by nextDoc() and advance() once the documents are exhausted. */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     *  The current docID, -1 before the first call to nextDoc() or
+     *  advance(), and NO_MORE_DOCS at the end.
+     */
+    public int docID();
+
+    /** Moves to the next document and returns its docID. */
+    public int nextDoc();
+
+    /**
+     *  Moves to the first document at or after <code>target</code>, staying
+     *  on the current one if it is already there, and returns its docID.
+     */
+    public int advance( int target );
+
+    /** Number of occurrences of the term in the current document. */
+    public int freq();
+
+    /** The positions of the term in the current document. */
+    public ArrayList<Integer> positions();
+
+    /** Number of documents of the term. */
+    public int cost();
+}
@@ -15,16 +15,37 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public int docID;
     public double score = 0;
+
+    /** Number of occurrences of the term in the document. */
+    public int tf = 0;
+
+    /**
+     * The positions of the term in the document. For postings read from a
+     * persistent index they are null until read from the positions file,
+     * see PostingsList.offsets.
+     */
     public ArrayList<Integer> offsets = new ArrayList<>();
 
+    /** Where the offsets start in the positions file. */
+    long positionsPtr = -1;
+
     public PostingsEntry(int docID, int offset) {
         this.docID = docID;
         this.offsets.add(offset);
+        this.tf = 1;
     }
 
     public PostingsEntry(int docID, ArrayList<Integer> offsets) {
         this.docID = docID;
         this.offsets = offsets;
+        this.tf = offsets.size();
+    }
+
+    public PostingsEntry(int docID, int tf, long positionsPtr) {
+        this.docID = docID;
+        this.tf = tf;
+        this.offsets = null;
+        this.positionsPtr = positionsPtr;
     }
 
     public PostingsEntry(int docID, double score) {
@@ -38,10 +59,12 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
         ArrayList<String> myList = new ArrayList<>(Arrays.asList(array[1].split(",")));
         myList.forEach((s) -> offsets.add(Integer.parseInt(s)));
         this.docID = Integer.parseInt(docID);
+        this.tf = offsets.size();
     }
 
     public void addOffset(int offset) {
         this.offsets.add(offset);
+        ++tf;
     }
 
     /**
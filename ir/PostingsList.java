@@ -7,31 +7,98 @@
 
 package ir;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class PostingsList implements Comparable<PostingsList> {
 
+    /**
+     * Number of entries per block in the on-disk format. The skip header
+     * has one entry per block.
+     */
+    public static final int BLOCK_SIZE = 64;
+
     /**
      * The postings list
      */
     private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
     public double weight = 1.;
 
+    /**
+     * For a list read from disk: the encoded entries, the last docID, the
+     * start and the start in the positions file of every block, and which
+     * blocks have been decoded into the list. Blocks are decoded the first
+     * time one of their entries is needed.
+     */
+    private String encoded;
+    private int[] blockLastDocID;
+    private int[] blockStart;
+    private long[] blockPositionsPtr;
+    private boolean[] decoded;
+
+    /** Where the offsets of a list read from disk are. */
+    private PositionsFile positions;
+
     public PostingsList() {
     }
 
+    /**
+     * Reads a plain list written by toString().
+     */
     public PostingsList(String posting) {
-        String[] postingEntries = posting.split("-");
-        for (String entry : postingEntries) {
-            if (entry.contains(":"))
-                list.add(new PostingsEntry(entry));
+        this(posting, null);
+    }
+
+    /**
+     * Reads a list written by encode(), whose offsets are in
+     * <code>positions</code>, or a plain list written by toString().
+     */
+    public PostingsList(String posting, PositionsFile positions) {
+        int sep = posting.indexOf('|');
+        if (sep < 0) {
+            String[] postingEntries = posting.split("-");
+            for (String entry : postingEntries) {
+                if (entry.contains(":"))
+                    list.add(new PostingsEntry(entry));
+            }
+            return;
         }
+
+        String[] header = posting.substring(0, sep).split(";");
+        int df = Integer.parseInt(header[0]);
+        int blocks = (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockLastDocID = new int[blocks];
+        blockStart = new int[blocks];
+        blockPositionsPtr = new long[blocks];
+        decoded = new boolean[blocks];
+        if (blocks > 0) {
+            String[] skips = header[1].split(",");
+            for (int b = 0; b < blocks; ++b) {
+                String[] skip = skips[b].split("@");
+                blockLastDocID[b] = Integer.parseInt(skip[0]);
+                blockStart[b] = sep + 1 + Integer.parseInt(skip[1]);
+                blockPositionsPtr[b] = Long.parseLong(skip[2]);
+            }
+        }
+        encoded = posting;
+        this.positions = positions;
+        list = new ArrayList<>(Collections.nCopies(df, (PostingsEntry) null));
     }
 
     public PostingsList(PostingsList postingsList, double score) {
         list = (ArrayList<PostingsEntry>) postingsList.list.clone();
         weight = score;
+        if (postingsList.encoded != null) {
+            encoded = postingsList.encoded;
+            blockLastDocID = postingsList.blockLastDocID;
+            blockStart = postingsList.blockStart;
+            blockPositionsPtr = postingsList.blockPositionsPtr;
+            decoded = postingsList.decoded.clone();
+        }
+        positions = postingsList.positions;
     }
 
     /**
@@ -49,10 +116,143 @@ public class PostingsList implements Comparable<PostingsList> {
      * Returns the ith posting.
      */
     public PostingsEntry get(int i) {
+        if (encoded != null && !decoded[i / BLOCK_SIZE]) decodeBlock(i / BLOCK_SIZE);
         return list.get(i);
     }
 
+    private void decodeBlock(int b) {
+        int end = b + 1 < blockStart.length ? blockStart[b + 1] - 1 : encoded.length();
+        String[] postingEntries = encoded.substring(blockStart[b], end).split("-");
+        long positionsPtr = blockPositionsPtr[b];
+        for (int k = 0; k < postingEntries.length; ++k) {
+            int sep = postingEntries[k].indexOf(':');
+            int docID = Integer.parseInt(postingEntries[k].substring(0, sep));
+            int tf = Integer.parseInt(postingEntries[k].substring(sep + 1));
+            list.set(b * BLOCK_SIZE + k, new PostingsEntry(docID, tf, positionsPtr));
+            positionsPtr += 4L * tf;
+        }
+        decoded[b] = true;
+    }
+
+    /**
+     * Returns the offsets of the ith posting, reading them from the positions
+     * file the first time for a list read from disk.
+     */
+    public ArrayList<Integer> offsets(int i) {
+        PostingsEntry postingsEntry = get(i);
+        if (postingsEntry.offsets == null) {
+            postingsEntry.offsets = positions.read(postingsEntry.positionsPtr, postingsEntry.tf);
+        }
+        return postingsEntry.offsets;
+    }
+
+    /**
+     * Returns a cursor over this list.
+     */
+    public PostingsCursor cursor() {
+        return new ListPostingsCursor(this);
+    }
+
+    /**
+     * Reads the offsets of all the postings.
+     */
+    public void loadPositions() {
+        for (int i = 0; i < size(); ++i) {
+            offsets(i);
+        }
+    }
+
+    private void decodeAll() {
+        if (encoded == null) return;
+        for (int b = 0; b < decoded.length; ++b) {
+            if (!decoded[b]) decodeBlock(b);
+        }
+        encoded = null;
+    }
+
+    /**
+     * Returns the position of the first posting at or after <code>from</code>
+     * whose docID is at least <code>docID</code>, or size() if there is none.
+     *
+     * The search gallops (exponential search, then binary search), so skipping
+     * n postings costs O(log n). For a list read from disk, whole blocks are
+     * first skipped on their last docID without being decoded.
+     */
+    public int advance(int from, int docID) {
+        if (from >= size()) return size();
+        int limit = size();
+        if (encoded != null) {
+            int b = gallop(blockLastDocID, from / BLOCK_SIZE, docID);
+            if (b == blockLastDocID.length) return size();
+            from = Math.max(from, b * BLOCK_SIZE);
+            limit = Math.min(limit, (b + 1) * BLOCK_SIZE);
+        }
+        if (get(from).docID >= docID) return from;
+        // get(lo).docID < docID, and hi == limit or get(hi).docID >= docID
+        int lo = from;
+        int hi = from + 1;
+        int step = 1;
+        while (hi < limit && get(hi).docID < docID) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, limit);
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid).docID < docID) lo = mid;
+            else hi = mid;
+        }
+        return hi;
+    }
+
+    /**
+     * Galloping search in a sorted array: the first position at or after
+     * <code>from</code> holding a value of at least <code>value</code>.
+     */
+    static int gallop(int[] values, int from, int value) {
+        if (from >= values.length || values[from] >= value) return from;
+        int lo = from;
+        int step = 1;
+        int hi = from + 1;
+        while (hi < values.length && values[hi] < value) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, values.length);
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < value) lo = mid;
+            else hi = mid;
+        }
+        return hi;
+    }
+
+    /**
+     * Galloping search in a sorted list of offsets, see gallop(int[], int, int).
+     */
+    static int gallop(List<Integer> values, int from, int value) {
+        if (from >= values.size() || values.get(from) >= value) return from;
+        int lo = from;
+        int step = 1;
+        int hi = from + 1;
+        while (hi < values.size() && values.get(hi) < value) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, values.size());
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (values.get(mid) < value) lo = mid;
+            else hi = mid;
+        }
+        return hi;
+    }
+
     public void addEntry(int docID, int offset) {
+        decodeAll();
         if (list.isEmpty()) {
             list.add(new PostingsEntry(docID, offset));
         } else if (docID != list.get(list.size() - 1).docID)
@@ -63,15 +263,30 @@ public class PostingsList implements Comparable<PostingsList> {
     }
 
     public void addEntry(PostingsEntry postingsEntry) {
+        decodeAll();
         list.add(postingsEntry);
     }
 
     public void addAll(PostingsList postingsList, int index) {
+        postingsList.decodeAll();
         int end = postingsList.size();
         list.addAll(postingsList.list.subList(index, end));
     }
 
+    /**
+     * Renumbers the documents in this list (newID is indexed by the old docID)
+     * and puts the entries back in docID order.
+     */
+    public void remapDocIDs(int[] newID) {
+        decodeAll();
+        for (PostingsEntry postingsEntry : list) {
+            postingsEntry.docID = newID[postingsEntry.docID];
+        }
+        list.sort((e1, e2) -> Integer.compare(e1.docID, e2.docID));
+    }
+
     public ArrayList<PostingsEntry> getList() {
+        decodeAll();
         return list;
     }
 
@@ -80,8 +295,33 @@ public class PostingsList implements Comparable<PostingsList> {
         return Integer.compare(o.size(), this.size());
     }
 
+    /**
+     * Encodes the list for the on-disk formats, appending the offsets to the
+     * positions file. The record is a skip header with the number of postings
+     * and, for every block of BLOCK_SIZE postings, its last docID, where it
+     * starts and where its offsets start in the positions file, followed by
+     * "docID:tf" for every posting. For instance "3;12@0@4096|4:2-8:1-12:2".
+     */
+    public String encode(PositionsFile positions) throws IOException {
+        StringBuilder header = new StringBuilder().append(size()).append(';');
+        StringBuilder entries = new StringBuilder();
+        for (int i = 0; i < size(); ++i) {
+            PostingsEntry postingsEntry = get(i);
+            if (i > 0) entries.append('-');
+            long positionsPtr = positions.write(offsets(i));
+            if (i % BLOCK_SIZE == 0) {
+                if (i > 0) header.append(',');
+                int last = Math.min(i + BLOCK_SIZE, size()) - 1;
+                header.append(get(last).docID).append('@').append(entries.length()).append('@').append(positionsPtr);
+            }
+            entries.append(postingsEntry.docID).append(':').append(postingsEntry.tf);
+        }
+        return header.append('|').append(entries).toString();
+    }
+
     @Override
     public String toString() {
-        return list.stream().map(Object::toString).collect(Collectors.joining("-"));
+        loadPositions();
+        return getList().stream().map(Object::toString).collect(Collectors.joining("-"));
     }
 }
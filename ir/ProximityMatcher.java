@@ -0,0 +1,121 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ *  Streams the documents where all the terms of a proximity query occur
+ *  within a window of k words.
+ *
+ *  The documents are found by leapfrogging the cursors of all terms, and
+ *  the windows in a document by one merge over their positions. In an
+ *  unordered window ("a NEAR/k b") the terms may come in any order; in an
+ *  ordered one ("a ONEAR/k b") they must come in the order of the query.
+ *  A window spans k words when its last word is at most k words after its
+ *  first one. Documents come out one at a time from nextMatch(), nothing is
+ *  collected.
+ */
+public class ProximityMatcher {
+
+    private PostingsCursor[] cursors;
+    private Conjunction documents;
+    private int k;
+    private boolean ordered;
+
+    /** Start positions of the windows in the current document. */
+    private ArrayList<Integer> windows = new ArrayList<>();
+
+    private int docID = -1;
+
+    /**
+     *  @param cursors The cursors of the terms, in the order of the query.
+     */
+    public ProximityMatcher( PostingsCursor[] cursors, int k, boolean ordered ) {
+        this.cursors = cursors;
+        this.documents = new Conjunction(cursors);
+        this.k = k;
+        this.ordered = ordered;
+    }
+
+    /**
+     *  Moves to the next document with at least one window, and returns its
+     *  docID, or PostingsCursor.NO_MORE_DOCS.
+     */
+    public int nextMatch() {
+        while (true) {
+            docID = documents.nextDoc();
+            if (docID == PostingsCursor.NO_MORE_DOCS) return docID;
+            windows.clear();
+            if (ordered) matchOrdered();
+            else matchUnordered();
+            if (!windows.isEmpty()) return docID;
+        }
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    /**
+     *  Start positions of the windows of the current document.
+     */
+    public ArrayList<Integer> windows() {
+        return windows;
+    }
+
+    /**
+     *  Minimum-span sliding window: the heads of all position lists are kept
+     *  in a heap, and the smallest is moved on after checking the span from
+     *  it to the largest head.
+     */
+    private void matchUnordered() {
+        int n = cursors.length;
+        ArrayList<ArrayList<Integer>> positions = new ArrayList<>(n);
+        // heads hold {position, term, index in the positions of the term}
+        PriorityQueue<int[]> heads = new PriorityQueue<>((h1, h2) -> Integer.compare(h1[0], h2[0]));
+        int max = -1;
+        for (int t = 0; t < n; ++t) {
+            positions.add(cursors[t].positions());
+            int first = positions.get(t).get(0);
+            heads.add(new int[]{first, t, 0});
+            max = Math.max(max, first);
+        }
+        while (true) {
+            int[] head = heads.poll();
+            if (max - head[0] <= k) windows.add(head[0]);
+            ArrayList<Integer> termPositions = positions.get(head[1]);
+            if (++head[2] == termPositions.size()) return;
+            head[0] = termPositions.get(head[2]);
+            max = Math.max(max, head[0]);
+            heads.add(head);
+        }
+    }
+
+    /**
+     *  For every position of the first term, the earliest occurrence of every
+     *  following term after the previous one. Since the windows only move
+     *  forward, so do the positions in every list.
+     */
+    private void matchOrdered() {
+        int n = cursors.length;
+        ArrayList<ArrayList<Integer>> positions = new ArrayList<>(n);
+        for (int t = 0; t < n; ++t) {
+            positions.add(cursors[t].positions());
+        }
+        int[] at = new int[n];
+        for (int start : positions.get(0)) {
+            int last = start;
+            for (int t = 1; t < n; ++t) {
+                at[t] = PostingsList.gallop(positions.get(t), at[t], last + 1);
+                if (at[t] == positions.get(t).size()) return;
+                last = positions.get(t).get(at[t]);
+            }
+            if (last - start <= k) windows.add(start);
+        }
+    }
+}
@@ -66,6 +66,45 @@ public class Query {
         }
     }
 
+    /**
+     * The query as one line of text: its terms separated by single spaces,
+     * every term with a weight other than 1 as "term^weight". Queries with
+     * the same terms and weights have the same text, and fromText reads it
+     * back into the query.
+     */
+    public String text() {
+        StringBuilder text = new StringBuilder();
+        for (QueryTerm t : queryterm) {
+            if (text.length() > 0) text.append(' ');
+            text.append(t.term);
+            if (t.weight != 1.0) text.append('^').append(t.weight);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads a query written by text().
+     */
+    public static Query fromText(String text) {
+        Query query = new Query();
+        StringTokenizer tok = new StringTokenizer(text);
+        while (tok.hasMoreTokens()) {
+            String term = tok.nextToken();
+            double weight = 1.0;
+            int sep = term.lastIndexOf('^');
+            if (sep > 0) {
+                try {
+                    weight = Double.parseDouble(term.substring(sep + 1));
+                    term = term.substring(0, sep);
+                } catch (NumberFormatException e) {
+                    // a '^' of the term itself
+                }
+            }
+            query.queryterm.add(query.new QueryTerm(term, weight));
+        }
+        return query;
+    }
+
     /**
      * Returns the number of terms
      */
@@ -124,9 +163,20 @@ public class Query {
         for (int i = 0; i < docIsRelevant.length; ++i) {
             if (docIsRelevant[i]) {
                 int docId = results.get(i).docID;
-                String docPath = engine.index.docNames.get(docId);
-
-                processRelevantDoc(newQueryWeights, docPath, patternsFile, numRelevantDocs);
+                IndexSnapshot snapshot = engine.searcher.snapshot();
+                ForwardIndex forwardIndex = snapshot == null ? null : snapshot.forwardIndex;
+                int[] vector = forwardIndex == null ? null : forwardIndex.vector(docId);
+                if (vector != null) {
+                    // every occurrence of a term adds to its weight, as when tokenizing
+                    for (int k = 0; k < vector.length; k += 2) {
+                        String token = forwardIndex.term(vector[k]);
+                        double score = newQueryWeights.getOrDefault(token, 0.0);
+                        newQueryWeights.put(token, score + vector[k + 1] * beta * (1. / numRelevantDocs));
+                    }
+                } else {
+                    String docPath = engine.index.docTable().name(docId);
+                    processRelevantDoc(newQueryWeights, docPath, patternsFile, numRelevantDocs);
+                }
                 countDocs++;
             }
             if (countDocs == numRelevantDocs)
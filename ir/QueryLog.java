@@ -0,0 +1,123 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ *  A log of the queries searched, one line per query:
+ *
+ *      time <tab> type <tab> ranking <tab> norm <tab> results <tab> latency <tab> text
+ *
+ *  time is when the query started, in milliseconds since the epoch, the
+ *  types are the names of the enums, latency is in microseconds and text
+ *  is the query as Query.text() writes it, with the weights of its terms,
+ *  so that queries expanded by relevance feedback are logged as they were
+ *  searched. ReplayLoad replays a log against an index.
+ *
+ *  The lines are appended to the file through a buffer, which is written
+ *  when full, every FLUSH_INTERVAL lines and when the program exits.
+ */
+public class QueryLog implements Closeable {
+
+    /** The buffer is written to the file at least every this many lines. */
+    static final int FLUSH_INTERVAL = 100;
+
+    /** A query of a log. */
+    public static class Entry {
+        public long time;
+        public QueryType queryType;
+        public RankingType rankingType;
+        public NormalizationType normalizationType;
+        public int results;
+        public long latency;
+        public String text;
+
+        /** A new query with the terms and weights of the one logged. */
+        public Query query() {
+            return Query.fromText(text);
+        }
+    }
+
+    private Writer out;
+
+    private int unflushed = 0;
+
+
+    /**
+     *  Opens a log, appending to the file if there is one.
+     */
+    public QueryLog( String fileName ) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "query-log"));
+    }
+
+    /**
+     *  Logs a query searched, which started at startTime, in milliseconds
+     *  since the epoch, and took latency nanoseconds.
+     */
+    public void log( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType,
+                     int results, long startTime, long latency ) {
+        String line = startTime + "\t" + queryType + "\t" + rankingType + "\t" + normalizationType + "\t"
+                + results + "\t" + latency / 1000 + "\t" + query.text() + "\n";
+        synchronized (this) {
+            if (out == null) return;
+            try {
+                out.write(line);
+                if (++unflushed >= FLUSH_INTERVAL) {
+                    out.flush();
+                    unflushed = 0;
+                }
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    /**
+     *  Reads the queries of a log, in the order they were logged.
+     */
+    public static ArrayList<Entry> read( String fileName ) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                ++number;
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\t", 7);
+                try {
+                    Entry entry = new Entry();
+                    entry.time = Long.parseLong(fields[0]);
+                    entry.queryType = QueryType.valueOf(fields[1]);
+                    entry.rankingType = RankingType.valueOf(fields[2]);
+                    entry.normalizationType = NormalizationType.valueOf(fields[3]);
+                    entry.results = Integer.parseInt(fields[4]);
+                    entry.latency = 1000L * Long.parseLong(fields[5]);
+                    entry.text = fields[6];
+                    entries.add(entry);
+                } catch ( IllegalArgumentException | ArrayIndexOutOfBoundsException e ) {
+                    // a line cut short when the program stopped
+                    System.err.println(fileName + ":" + number + ": skipped, " + e);
+                }
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Replays a query log, see QueryLog, against an index, and reports how
+ *  fast the queries were.
+ *
+ *      java ir.ReplayLoad -log file [-rate qps | -speed s | -users n]
+ *                         [-warmup w] [-pool p] [engine options]
+ *
+ *  The index is loaded as with "Engine -ni", and the engine options are
+ *  passed on to it. The queries are replayed in one of two ways:
+ *
+ *  Open loop, -rate or -speed: the queries arrive on a schedule whatever
+ *  the searcher does, either rate queries a second or at the times of the
+ *  log, with the gaps divided by speed (the default, at speed 1). They are
+ *  run on a pool of p threads, and the latency of a query is counted from
+ *  when it was due, not from when a thread was free to run it, so that the
+ *  time queries wait behind slow ones is counted too.
+ *
+ *  Closed loop, -users: n users each run a query and then the next in the
+ *  log, as soon as the one before is done, and the latency of a query is
+ *  the time it was searched.
+ *
+ *  The first w queries warm the caches and are not measured. The report
+ *  gives the throughput and the 50th, 95th and 99th percentiles and the
+ *  largest latency, overall and by query type.
+ */
+public class ReplayLoad {
+
+    /** The default number of threads of the open loop. */
+    static final int DEFAULT_POOL = 64;
+
+    ArrayList<QueryLog.Entry> entries;
+
+    Searcher searcher;
+
+    int warmup = 0;
+
+    /** The latencies of the queries, in nanoseconds, by query. */
+    private long[] latencies;
+
+    /** The number of queries due in the open loop before they could start. */
+    private AtomicInteger late = new AtomicInteger();
+
+
+    public ReplayLoad( Searcher searcher, ArrayList<QueryLog.Entry> entries ) {
+        this.searcher = searcher;
+        this.entries = entries;
+    }
+
+    private void search( int q ) {
+        QueryLog.Entry entry = entries.get(q);
+        searcher.search(entry.query(), entry.queryType, entry.rankingType, entry.normalizationType);
+    }
+
+    /**
+     *  The time every query is due, in nanoseconds from the first, rate
+     *  queries a second if rate is positive and otherwise at the times of
+     *  the log divided by speed.
+     */
+    long[] schedule( double rate, double speed ) {
+        long[] due = new long[entries.size()];
+        for (int q = 0; q < due.length; ++q) {
+            if (rate > 0) {
+                due[q] = (long) (q * 1e9 / rate);
+            } else {
+                long gap = Math.max(0, entries.get(q).time - entries.get(0).time);
+                due[q] = (long) (gap * 1e6 / speed);
+            }
+        }
+        return due;
+    }
+
+    /**
+     *  Replays the log in an open loop.
+     *
+     *  @return The wall-clock time of the measured queries, in nanoseconds.
+     */
+    public long runOpen( long[] due, int pool ) throws InterruptedException {
+        int n = entries.size();
+        latencies = new long[n];
+        ExecutorService workers = Executors.newFixedThreadPool(pool);
+        long start = System.nanoTime();
+        for (int q = 0; q < n; ++q) {
+            final int query = q;
+            final long dueAt = start + due[q];
+            long wait = dueAt - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            workers.execute(() -> {
+                if (System.nanoTime() - dueAt > TimeUnit.MILLISECONDS.toNanos(1)) late.incrementAndGet();
+                search(query);
+                latencies[query] = System.nanoTime() - dueAt;
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long end = System.nanoTime();
+        return end - start - (warmup < n ? due[warmup] : 0);
+    }
+
+    /**
+     *  Replays the log in a closed loop. The users take the next query from
+     *  a shared counter; the measured part starts when every warm-up query
+     *  is done.
+     *
+     *  @return The wall-clock time of the measured queries, in nanoseconds.
+     */
+    public long runClosed( int users ) throws InterruptedException {
+        int n = entries.size();
+        latencies = new long[n];
+        runUsers(users, 0, Math.min(warmup, n));
+        long start = System.nanoTime();
+        runUsers(users, Math.min(warmup, n), n);
+        return System.nanoTime() - start;
+    }
+
+    private void runUsers( int users, int from, int to ) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger(from);
+        Thread[] threads = new Thread[users];
+        for (int u = 0; u < users; ++u) {
+            threads[u] = new Thread(() -> {
+                for (int q = next.getAndIncrement(); q < to; q = next.getAndIncrement()) {
+                    long start = System.nanoTime();
+                    search(q);
+                    latencies[q] = System.nanoTime() - start;
+                }
+            }, "user-" + u);
+            threads[u].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public void report( PrintStream out, String mode, long elapsed ) {
+        int from = Math.min(warmup, entries.size());
+        long[] measured = Arrays.copyOfRange(latencies, from, latencies.length);
+        out.println(String.format(Locale.ROOT, "%s: %d queries, %d warm-up, %d measured in %.3f s: %.1f queries/s",
+                                  mode, entries.size(), from, measured.length, elapsed / 1e9,
+                                  elapsed > 0 ? measured.length / (elapsed / 1e9) : 0));
+        if (mode.startsWith("open")) out.println(late.get() + " queries started more than 1 ms late");
+        out.println(String.format(Locale.ROOT, "%-20s %8s %9s %9s %9s %9s", "latency (ms)", "queries", "p50", "p95", "p99", "max"));
+        out.println(BatchRunner.latencyLine("all", measured));
+        for (QueryType queryType : QueryType.values()) {
+            long[] byType = new long[measured.length];
+            int m = 0;
+            for (int q = from; q < latencies.length; ++q) {
+                if (entries.get(q).queryType == queryType) byType[m++] = latencies[q];
+            }
+            if (m > 0) out.println(BatchRunner.latencyLine(queryType.toString(), Arrays.copyOf(byType, m)));
+        }
+        Index index = searcher.snapshot().index;
+        if (index instanceof PersistentHashedIndex) {
+            out.println(((PersistentHashedIndex) index).getCache());
+            out.println("postings records read: " + ((PersistentHashedIndex) index).loads);
+        }
+        out.println(searcher.resultCache);
+        out.println(searcher.pairCache);
+        out.println("queries evaluated: " + searcher.searches);
+    }
+
+    public static void main( String[] args ) throws Exception {
+        String logFile = null;
+        double rate = 0, speed = 1;
+        int users = 0, warmup = 0, pool = DEFAULT_POOL;
+        ArrayList<String> engineArgs = new ArrayList<>(Arrays.asList("-ni", "-nogui"));
+        for (int i = 0; i < args.length; ++i) {
+            if ("-log".equals(args[i]) && i + 1 < args.length) {
+                logFile = args[++i];
+            } else if ("-rate".equals(args[i]) && i + 1 < args.length) {
+                rate = Double.parseDouble(args[++i]);
+            } else if ("-speed".equals(args[i]) && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if ("-users".equals(args[i]) && i + 1 < args.length) {
+                users = Integer.parseInt(args[++i]);
+            } else if ("-warmup".equals(args[i]) && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-pool".equals(args[i]) && i + 1 < args.length) {
+                pool = Integer.parseInt(args[++i]);
+            } else {
+                engineArgs.add(args[i]);
+            }
+        }
+        if (logFile == null || speed <= 0) {
+            System.err.println("Usage: ReplayLoad -log file [-rate qps | -speed s | -users n] [-warmup w] [-pool p] [engine options]");
+            return;
+        }
+
+        ArrayList<QueryLog.Entry> entries = QueryLog.read(logFile);
+        Engine engine = new Engine(engineArgs.toArray(new String[0]));
+        ReplayLoad load = new ReplayLoad(engine.searcher, entries);
+        load.warmup = Math.max(0, warmup);
+        if (users > 0) {
+            long elapsed = load.runClosed(users);
+            load.report(System.out, "closed loop, " + users + " users", elapsed);
+        } else {
+            long elapsed = load.runOpen(load.schedule(rate, speed), Math.max(1, pool));
+            String mode = rate > 0 ? String.format(Locale.ROOT, "open loop, %.1f queries/s", rate)
+                                   : String.format(Locale.ROOT, "open loop, log times at speed %.1f", speed);
+            load.report(System.out, mode, elapsed);
+        }
+    }
+}
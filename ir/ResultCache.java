@@ -0,0 +1,198 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  A cache of the results of the queries searched, so that a query asked
+ *  again, e.g. to show more of its results, is not searched again.
+ *
+ *  A result is cached by the text of the query (see Query.text), with the
+ *  weights of its terms, and its query, ranking and normalization types.
+ *  Only the number of documents and the docIDs and scores of the first
+ *  TOP_K of them are kept, in two arrays, which is all a page of results
+ *  needs; a page past them is searched again. The results of phrase and
+ *  proximity queries are not cached, as their positions are not kept.
+ *  Every result is marked with the generation of the index snapshot it
+ *  was computed on, and is only returned for queries on the same snapshot.
+ *  The cache holds at most maxBytes bytes, and evicts the result used
+ *  least recently.
+ */
+public class ResultCache {
+
+    /** The default size of the cache, in bytes. */
+    static final long DEFAULT_BYTES = 16L << 20;
+
+    /** The number of documents of a result that are cached. */
+    static final int TOP_K = 1000;
+
+    /** The bytes counted for a result on top of its arrays, for the map entry and the key. */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /** The first documents of a result. */
+    static class Result {
+        final long generation;
+
+        /** The number of documents of the result. */
+        final int total;
+
+        /** The docIDs and scores of the first documents, or null if the query had no result. */
+        final int[] docIDs;
+        final double[] scores;
+
+        /**
+         *  The first <code>depth</code> documents of a result.
+         */
+        Result( long generation, PostingsList answer, int depth ) {
+            this.generation = generation;
+            if (answer == null) {
+                total = 0;
+                docIDs = null;
+                scores = null;
+            } else {
+                total = answer.size();
+                docIDs = new int[Math.min(total, Math.max(0, depth))];
+                scores = new double[docIDs.length];
+                for (int i = 0; i < docIDs.length; ++i) {
+                    PostingsEntry postingsEntry = answer.get(i);
+                    docIDs[i] = postingsEntry.docID;
+                    scores[i] = postingsEntry.score;
+                }
+            }
+        }
+
+        /** Whether the first <code>depth</code> documents, or all of them if fewer, are kept. */
+        boolean covers( int depth ) {
+            return docIDs == null || docIDs.length == total || depth <= docIDs.length;
+        }
+
+        /** A new list of the documents kept, which the caller may change. */
+        PostingsList answer() {
+            if (docIDs == null) return null;
+            PostingsList answer = new PostingsList();
+            for (int i = 0; i < docIDs.length; ++i) {
+                answer.addEntry(new PostingsEntry(docIDs[i], scores[i]));
+            }
+            return answer;
+        }
+
+        long weight( String key ) {
+            return 2L * key.length() + ENTRY_OVERHEAD + (docIDs == null ? 0 : 12L * docIDs.length);
+        }
+    }
+
+    /** The results, least recently used first. */
+    private LinkedHashMap<String,Result> results = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long maxBytes;
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long stale = 0;
+    private long evictions = 0;
+
+
+    public ResultCache( long maxBytes ) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     *  The key of a query.
+     */
+    static String key( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType ) {
+        return queryType + "\t" + rankingType + "\t" + normalizationType + "\t" + query.text();
+    }
+
+    /**
+     *  Whether the results of a query type are cached.
+     */
+    static boolean caches( QueryType queryType ) {
+        return queryType != QueryType.PHRASE_QUERY && queryType != QueryType.PROXIMITY_QUERY;
+    }
+
+    /**
+     *  Returns the result cached for a key on the given snapshot generation,
+     *  if it has the first <code>depth</code> documents, or null. A result
+     *  of another generation is dropped.
+     */
+    synchronized Result get( String key, long generation, int depth ) {
+        if (maxBytes == 0) return null;
+        Result result = results.get(key);
+        if (result != null && result.generation != generation) {
+            remove(key);
+            ++stale;
+            result = null;
+        }
+        if (result != null && !result.covers(depth)) result = null;
+        if (result == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return result;
+    }
+
+    /**
+     *  Caches the first TOP_K documents of the result of a query.
+     */
+    synchronized void put( String key, long generation, PostingsList answer ) {
+        if (maxBytes == 0) return;
+        Result result = new Result(generation, answer, TOP_K);
+        long weight = result.weight(key);
+        if (weight > maxBytes) return;
+        remove(key);
+        evict(maxBytes - weight);
+        results.put(key, result);
+        bytes += weight;
+    }
+
+    private void remove( String key ) {
+        Result result = results.remove(key);
+        if (result != null) bytes -= result.weight(key);
+    }
+
+    /** Evicts the least recently used results until at most <code>limit</code> bytes are left. */
+    private void evict( long limit ) {
+        Iterator<Map.Entry<String,Result>> eldest = results.entrySet().iterator();
+        while (bytes > limit && eldest.hasNext()) {
+            Map.Entry<String,Result> entry = eldest.next();
+            bytes -= entry.getValue().weight(entry.getKey());
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     *  Sets the size of the cache, evicting results until they fit.
+     */
+    public synchronized void resize( long maxBytes ) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict(this.maxBytes);
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        bytes = 0;
+    }
+
+    public synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     *  The statistics of the cache, on one line.
+     */
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+                "result cache: %d hits, %d misses, hit ratio %.3f, %d stale, %d evicted, %d results in %d of %d bytes",
+                hits, misses, hitRatio(), stale, evictions, results.size(), bytes, maxBytes);
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  A compressed set of docIDs in the style of Roaring bitmaps.
+ *
+ *  The docIDs are split on their 16 high bits. Every group of docIDs sharing
+ *  the same high bits is kept in a container holding the 16 low bits, either
+ *  as a sorted array (few docIDs), as a bitmap of 2^16 bits (many docIDs) or
+ *  as runs of consecutive docIDs, whichever is smallest. Intersections and
+ *  unions of bitmaps work on 64 docIDs at a time.
+ */
+public class RoaringDocSet {
+
+    /**
+     *  Terms occurring in at least this fraction of the documents also get a
+     *  doc set. main() measures the crossover: with 20000 and 150000
+     *  documents, intersecting doc sets is 2 to 4 times faster than
+     *  leapfrogging over the postings from a density of 1/64 on, and about
+     *  even at 1/128.
+     */
+    public static final double DENSE_FRACTION = 1. / 64;
+
+    /** An array container never holds more docIDs than this. */
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    static final byte ARRAY = 0;
+    static final byte BITMAP = 1;
+    static final byte RUN = 2;
+
+    /** The high bits of every container, in increasing order. */
+    private char[] keys;
+
+    private Container[] containers;
+
+    private RoaringDocSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    // ==================================================================
+
+    /**
+     *  The low 16 bits of the docIDs sharing the same high bits.
+     */
+    abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        /** Sets the bits of this container in a bitmap of 1024 words. */
+        abstract void fill(long[] words);
+
+        abstract void toArray(int high, int[] docIDs, int at);
+
+        abstract byte type();
+
+        abstract void write(DataOutput out) throws IOException;
+
+        abstract int sizeInBytes();
+
+        long[] toWords() {
+            long[] words = new long[1024];
+            fill(words);
+            return words;
+        }
+    }
+
+    static class ArrayContainer extends Container {
+        char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        int cardinality() {
+            return values.length;
+        }
+
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        void fill(long[] words) {
+            for (char v : values) {
+                words[v >>> 6] |= 1L << v;
+            }
+        }
+
+        void toArray(int high, int[] docIDs, int at) {
+            for (char v : values) {
+                docIDs[at++] = high | v;
+            }
+        }
+
+        byte type() {
+            return ARRAY;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeShort(values.length);
+            for (char v : values) {
+                out.writeChar(v);
+            }
+        }
+
+        int sizeInBytes() {
+            return 2 * values.length;
+        }
+    }
+
+    static class BitmapContainer extends Container {
+        long[] words;
+        int cardinality;
+
+        BitmapContainer(long[] words) {
+            this.words = words;
+            for (long w : words) {
+                cardinality += Long.bitCount(w);
+            }
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        void fill(long[] target) {
+            for (int i = 0; i < 1024; ++i) {
+                target[i] |= words[i];
+            }
+        }
+
+        void toArray(int high, int[] docIDs, int at) {
+            for (int i = 0; i < 1024; ++i) {
+                long w = words[i];
+                while (w != 0) {
+                    docIDs[at++] = high | (i << 6) | Long.numberOfTrailingZeros(w);
+                    w &= w - 1;
+                }
+            }
+        }
+
+        byte type() {
+            return BITMAP;
+        }
+
+        void write(DataOutput out) throws IOException {
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+
+        int sizeInBytes() {
+            return 8 * 1024;
+        }
+
+        @Override
+        long[] toWords() {
+            return words;
+        }
+    }
+
+    static class RunContainer extends Container {
+        /** Runs of docIDs start..start+length, both included. */
+        char[] starts;
+        char[] lengths;
+        int cardinality;
+
+        RunContainer(char[] starts, char[] lengths) {
+            this.starts = starts;
+            this.lengths = lengths;
+            for (char l : lengths) {
+                cardinality += l + 1;
+            }
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains(char low) {
+            int r = Arrays.binarySearch(starts, low);
+            if (r >= 0) return true;
+            r = -r - 2;
+            return r >= 0 && low <= starts[r] + lengths[r];
+        }
+
+        void fill(long[] words) {
+            for (int r = 0; r < starts.length; ++r) {
+                for (int v = starts[r]; v <= starts[r] + lengths[r]; ++v) {
+                    words[v >>> 6] |= 1L << v;
+                }
+            }
+        }
+
+        void toArray(int high, int[] docIDs, int at) {
+            for (int r = 0; r < starts.length; ++r) {
+                for (int v = starts[r]; v <= starts[r] + lengths[r]; ++v) {
+                    docIDs[at++] = high | v;
+                }
+            }
+        }
+
+        byte type() {
+            return RUN;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeShort(starts.length);
+            for (int r = 0; r < starts.length; ++r) {
+                out.writeChar(starts[r]);
+                out.writeChar(lengths[r]);
+            }
+        }
+
+        int sizeInBytes() {
+            return 4 * starts.length;
+        }
+    }
+
+    // ==================================================================
+
+    /**
+     *  Builds the smallest container for some sorted low bits.
+     */
+    private static Container container(char[] values, int n) {
+        int runs = 0;
+        for (int i = 0; i < n; ++i) {
+            if (i == 0 || values[i] != values[i - 1] + 1) ++runs;
+        }
+        int arrayBytes = n <= MAX_ARRAY_SIZE ? 2 * n : Integer.MAX_VALUE;
+        if (4 * runs < Math.min(arrayBytes, 8 * 1024)) {
+            char[] starts = new char[runs];
+            char[] lengths = new char[runs];
+            int r = -1;
+            for (int i = 0; i < n; ++i) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    starts[++r] = values[i];
+                } else {
+                    ++lengths[r];
+                }
+            }
+            return new RunContainer(starts, lengths);
+        } else if (n <= MAX_ARRAY_SIZE) {
+            return new ArrayContainer(Arrays.copyOf(values, n));
+        } else {
+            long[] words = new long[1024];
+            for (int i = 0; i < n; ++i) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words);
+        }
+    }
+
+    /**
+     *  Builds the smallest container for a bitmap of 1024 words.
+     */
+    private static Container container(long[] words) {
+        int cardinality = 0;
+        for (long w : words) {
+            cardinality += Long.bitCount(w);
+        }
+        if (cardinality > MAX_ARRAY_SIZE) {
+            return new BitmapContainer(words);
+        }
+        char[] values = new char[cardinality];
+        int n = 0;
+        for (int i = 0; i < 1024; ++i) {
+            long w = words[i];
+            while (w != 0) {
+                values[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+                w &= w - 1;
+            }
+        }
+        return container(values, n);
+    }
+
+    /**
+     *  Builds the doc set of a postings list (sorted by docID).
+     */
+    public static RoaringDocSet of(PostingsList postingsList) {
+        int[] docIDs = new int[postingsList.size()];
+        for (int i = 0; i < docIDs.length; ++i) {
+            docIDs[i] = postingsList.get(i).docID;
+        }
+        return of(docIDs);
+    }
+
+    /**
+     *  Builds the doc set of sorted docIDs.
+     */
+    public static RoaringDocSet of(int[] docIDs) {
+        ArrayList<Character> keys = new ArrayList<>();
+        ArrayList<Container> containers = new ArrayList<>();
+        char[] values = new char[1 << 16];
+        int i = 0;
+        while (i < docIDs.length) {
+            int high = docIDs[i] >>> 16;
+            int n = 0;
+            while (i < docIDs.length && docIDs[i] >>> 16 == high) {
+                values[n++] = (char) docIDs[i++];
+            }
+            keys.add((char) high);
+            containers.add(container(values, n));
+        }
+        return build(keys, containers);
+    }
+
+    private static RoaringDocSet build(ArrayList<Character> keyList, ArrayList<Container> containerList) {
+        char[] keys = new char[keyList.size()];
+        for (int k = 0; k < keys.length; ++k) {
+            keys[k] = keyList.get(k);
+        }
+        return new RoaringDocSet(keys, containerList.toArray(new Container[0]));
+    }
+
+    // ==================================================================
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (Container c : containers) {
+            cardinality += c.cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean contains(int docID) {
+        int k = Arrays.binarySearch(keys, (char) (docID >>> 16));
+        return k >= 0 && containers[k].contains((char) docID);
+    }
+
+    /** The docIDs in increasing order. */
+    public int[] toArray() {
+        int[] docIDs = new int[cardinality()];
+        int at = 0;
+        for (int k = 0; k < keys.length; ++k) {
+            containers[k].toArray(keys[k] << 16, docIDs, at);
+            at += containers[k].cardinality();
+        }
+        return docIDs;
+    }
+
+    public int sizeInBytes() {
+        int size = 2 * keys.length;
+        for (Container c : containers) {
+            size += c.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     *  Intersection of two doc sets. Containers with the same high bits are
+     *  intersected word by word, or by probing when one side is an array.
+     */
+    public RoaringDocSet and(RoaringDocSet other) {
+        ArrayList<Character> keys = new ArrayList<>();
+        ArrayList<Container> containers = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                ++i;
+            } else if (this.keys[i] > other.keys[j]) {
+                ++j;
+            } else {
+                Container c = and(this.containers[i], other.containers[j]);
+                if (c.cardinality() > 0) {
+                    keys.add(this.keys[i]);
+                    containers.add(c);
+                }
+                ++i;
+                ++j;
+            }
+        }
+        return build(keys, containers);
+    }
+
+    private static Container and(Container c1, Container c2) {
+        if (c2.type() == ARRAY && c1.type() != ARRAY) {
+            Container c = c1;
+            c1 = c2;
+            c2 = c;
+        }
+        if (c1.type() == ARRAY && c2.type() == ARRAY) {
+            char[] v1 = ((ArrayContainer) c1).values;
+            char[] v2 = ((ArrayContainer) c2).values;
+            char[] result = new char[Math.min(v1.length, v2.length)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < v1.length && j < v2.length) {
+                if (v1[i] == v2[j]) {
+                    result[n++] = v1[i];
+                    ++i;
+                    ++j;
+                } else if (v1[i] < v2[j]) ++i;
+                else ++j;
+            }
+            return new ArrayContainer(Arrays.copyOf(result, n));
+        }
+        if (c1.type() == ARRAY) {
+            char[] values = ((ArrayContainer) c1).values;
+            char[] result = new char[values.length];
+            int n = 0;
+            for (char v : values) {
+                if (c2.contains(v)) result[n++] = v;
+            }
+            return new ArrayContainer(Arrays.copyOf(result, n));
+        }
+        long[] w1 = c1.toWords();
+        long[] w2 = c2.toWords();
+        long[] words = new long[1024];
+        for (int k = 0; k < 1024; ++k) {
+            words[k] = w1[k] & w2[k];
+        }
+        return container(words);
+    }
+
+    /**
+     *  Union of two doc sets.
+     */
+    public RoaringDocSet or(RoaringDocSet other) {
+        ArrayList<Character> keys = new ArrayList<>();
+        ArrayList<Container> containers = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < this.keys.length && this.keys[i] < other.keys[j])) {
+                keys.add(this.keys[i]);
+                containers.add(this.containers[i++]);
+            } else if (i == this.keys.length || this.keys[i] > other.keys[j]) {
+                keys.add(other.keys[j]);
+                containers.add(other.containers[j++]);
+            } else {
+                long[] words = new long[1024];
+                this.containers[i].fill(words);
+                other.containers[j].fill(words);
+                keys.add(this.keys[i]);
+                containers.add(container(words));
+                ++i;
+                ++j;
+            }
+        }
+        return build(keys, containers);
+    }
+
+    // ==================================================================
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        for (int k = 0; k < keys.length; ++k) {
+            out.writeChar(keys[k]);
+            out.writeByte(containers[k].type());
+            containers[k].write(out);
+        }
+    }
+
+    public static RoaringDocSet read(DataInput in) throws IOException {
+        int size = in.readInt();
+        char[] keys = new char[size];
+        Container[] containers = new Container[size];
+        for (int k = 0; k < size; ++k) {
+            keys[k] = in.readChar();
+            byte type = in.readByte();
+            if (type == ARRAY) {
+                char[] values = new char[in.readUnsignedShort()];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = in.readChar();
+                }
+                containers[k] = new ArrayContainer(values);
+            } else if (type == BITMAP) {
+                long[] words = new long[1024];
+                for (int i = 0; i < 1024; ++i) {
+                    words[i] = in.readLong();
+                }
+                containers[k] = new BitmapContainer(words);
+            } else {
+                int runs = in.readUnsignedShort();
+                char[] starts = new char[runs];
+                char[] lengths = new char[runs];
+                for (int r = 0; r < runs; ++r) {
+                    starts[r] = in.readChar();
+                    lengths[r] = in.readChar();
+                }
+                containers[k] = new RunContainer(starts, lengths);
+            }
+        }
+        return new RoaringDocSet(keys, containers);
+    }
+
+    // ==================================================================
+
+    /**
+     *  Measures, for a number of documents given as argument, the time of
+     *  intersecting two random terms of some density as postings lists and
+     *  as doc sets. DENSE_FRACTION is set where the doc sets start to win.
+     */
+    public static void main(String[] args) {
+        int numberOfDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        // the first pass only warms up the JIT
+        for (int pass = 0; pass < 2; ++pass) {
+            Random random = new Random(42);
+            if (pass == 1) System.err.println("density   postings(us)   docsets(us)");
+            for (int inverse = 256; inverse >= 2; inverse /= 2) {
+                double density = 1. / inverse;
+                PostingsList p1 = new PostingsList();
+                PostingsList p2 = new PostingsList();
+                for (int d = 0; d < numberOfDocs; ++d) {
+                    if (random.nextDouble() < density) p1.addEntry(d, 0);
+                    if (random.nextDouble() < density) p2.addEntry(d, 0);
+                }
+                RoaringDocSet s1 = of(p1);
+                RoaringDocSet s2 = of(p2);
+                int rounds = 2000;
+                long listFound = 0;
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; ++r) {
+                    int i = 0;
+                    int j = 0;
+                    while (i < p1.size() && j < p2.size()) {
+                        int d1 = p1.get(i).docID;
+                        int d2 = p2.get(j).docID;
+                        if (d1 == d2) {
+                            ++listFound;
+                            ++i;
+                            ++j;
+                        } else if (d1 < d2) i = p1.advance(i + 1, d2);
+                        else j = p2.advance(j + 1, d1);
+                    }
+                }
+                long listTime = System.nanoTime() - start;
+                long setFound = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; ++r) {
+                    setFound += s1.and(s2).cardinality();
+                }
+                long setTime = System.nanoTime() - start;
+                if (listFound != setFound) System.err.println("Results differ!");
+                if (pass == 1) System.err.println(String.format("1/%-6d  %12.2f  %12.2f", inverse,
+                        listTime / 1000. / rounds, setTime / 1000. / rounds));
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ *  Scores the documents of a ranked query in one pass over the postings.
+ *
+ *  The postings of the query terms are merged in docID order, and every
+ *  document matching at least one term has one score, its accumulator.
+ *  term() is added to it for every term the document has, document() then
+ *  gives the score of the document from its sum, and finish() is called
+ *  once with all documents scored. A scorer is made for one query, so it
+ *  may keep sums over the documents of that query.
+ */
+public interface Scorer {
+
+    /** True if the terms of the query count, not only which documents match. */
+    public boolean usesTerms();
+
+    /**
+     *  The score of a term occurring tf times in a document, the term
+     *  having inverse document frequency idf and the weight in the query.
+     */
+    public double term( int docID, int tf, double idf, double weight );
+
+    /** The score of a document, given the sum of the scores of its terms. */
+    public double document( int docID, double termScore );
+
+    /** Called once all documents are scored, in docID order. */
+    public void finish( PostingsList answer );
+}
@@ -16,6 +16,10 @@ import javax.swing.event.*;
 import javax.swing.border.*;
 import java.util.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 
 /**
  * A graphical interface to the information retrieval system.
@@ -70,6 +74,8 @@ public class SearchGUI extends JFrame {
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem("Intersection query");
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem("Phrase query");
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem("Ranked retrieval");
+    JRadioButtonMenuItem proximityItem = new JRadioButtonMenuItem("Proximity query");
+    JRadioButtonMenuItem booleanItem = new JRadioButtonMenuItem("Boolean query");
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem("tf-idf");
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem("PageRank");
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem("Combination");
@@ -110,6 +116,8 @@ public class SearchGUI extends JFrame {
         optionsMenu.add(intersectionItem);
         optionsMenu.add(phraseItem);
         optionsMenu.add(rankedItem);
+        optionsMenu.add(proximityItem);
+        optionsMenu.add(booleanItem);
         rankingMenu.add(tfidfItem);
         rankingMenu.add(pagerankItem);
         rankingMenu.add(combinationItem);
@@ -119,6 +127,8 @@ public class SearchGUI extends JFrame {
         queries.add(intersectionItem);
         queries.add(phraseItem);
         queries.add(rankedItem);
+        queries.add(proximityItem);
+        queries.add(booleanItem);
         ranking.add(tfidfItem);
         ranking.add(pagerankItem);
         ranking.add(combinationItem);
@@ -158,8 +168,16 @@ public class SearchGUI extends JFrame {
                 // Empty the results window
                 displayInfoText(" ");
                 // Turn the search string into a Query
-                String queryString = queryWindow.getText().toLowerCase().trim();
+                String queryString = queryWindow.getText().trim();
+                // the operators of a boolean query are in capitals
+                if (queryType != QueryType.BOOLEAN_QUERY)
+                    queryString = queryString.toLowerCase();
                 query = new Query(queryString);
+                // Queries wait for the indexes to be built and published to the searcher
+                if (engine.searcher.snapshot() == null) {
+                    displayInfoText("Indexing, please wait...");
+                    return;
+                }
                 // Take relevance feedback from the user into account (assignment 3)
                 // Check which documents the user has marked as relevant.
                 if (box != null) {
@@ -170,13 +188,10 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback(results, relevant, engine);
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. No lock is needed, the searcher reads
+                // the indexes published when they were done, see IndexSnapshot.
                 long startTime = System.currentTimeMillis();
-                synchronized (engine.indexLock) {
-                    results = engine.searcher.search(query, queryType, rankingType, normType);
-                }
+                results = engine.searcher.search(query, queryType, rankingType, normType);
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
                 //
@@ -241,6 +256,20 @@ public class SearchGUI extends JFrame {
         };
         rankedItem.addActionListener(setRankedQuery);
 
+        Action setProximityQuery = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                queryType = QueryType.PROXIMITY_QUERY;
+            }
+        };
+        proximityItem.addActionListener(setProximityQuery);
+
+        Action setBooleanQuery = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                queryType = QueryType.BOOLEAN_QUERY;
+            }
+        };
+        booleanItem.addActionListener(setBooleanQuery);
+
         Action setTfidfRanking = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 rankingType = RankingType.TF_IDF;
@@ -311,12 +340,27 @@ public class SearchGUI extends JFrame {
     void displayResults(int maxResultsToDisplay, double elapsedTime) {
         displayInfoText(String.format("Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime));
         box = new JCheckBox[maxResultsToDisplay];
+        // the snippets of the results shown, made in parallel
+        String[] snippets = null;
+        if (engine.snippets != null) {
+            int[] docIDs = new int[Math.min(results.size(), maxResultsToDisplay)];
+            for (int k = 0; k < docIDs.length; k++) {
+                docIDs[k] = results.get(k).docID;
+            }
+            snippets = engine.snippets.snippets(query, docIDs);
+        }
         int i;
         for (i = 0; i < results.size() && i < maxResultsToDisplay; i++) {
-            String description = i + ". " + displayableFileName(engine.index.docNames.get(results.get(i).docID));
+            String description = i + ". " + displayableFileName(engine.index.docTable().name(results.get(i).docID));
             if (queryType == QueryType.RANKED_QUERY) {
                 description += "   " + String.format("%.5f", results.get(i).score);
             }
+            if (snippets != null) {
+                StringBuilder html = new StringBuilder("<html><div style='width:360px'>");
+                Snippets.appendEscaped(html, description, 0, description.length());
+                html.append("<br><span style='font-weight:normal; font-size:90%'>").append(snippets[i]).append("</span></div></html>");
+                description = html.toString();
+            }
             box[i] = new JCheckBox();
             box[i].setSelected(false);
 
@@ -327,52 +371,26 @@ public class SearchGUI extends JFrame {
             JLabel label = new JLabel(description);
             label.setFont(resultFont);
 
+            final int docID = results.get(i).docID;
             MouseAdapter showDocument = new MouseAdapter() {
                 public void mouseClicked(MouseEvent e) {
-                    String fileName = ((JLabel) e.getSource()).getText().split(" ")[1];
-                    String contents = "Displaying contents of " + fileName + "\n" + MARKER + "\n";
-                    String line;
-
-                    Queue<String> fqueue = new LinkedList<>();
-
-                    for (int j = 0, sz = engine.dirNames.size(); j < sz; j++) {
-                        File curDir = new File(engine.dirNames.get(j));
-                        fqueue.offer(curDir.toString());
-
-                        String[] directories = curDir.list(new FilenameFilter() {
-                            @Override
-                            public boolean accept(File current, String name) {
-                                return new File(current, name).isDirectory();
-                            }
-                        });
-
-                        for (String dir : directories) {
-                            fqueue.offer(new File(curDir.toString(), dir).toString());
+                    String path = engine.index.docTable().name(docID);
+                    StringBuilder contents = new StringBuilder("Displaying contents of " + displayableFileName(path) + "\n" + MARKER + "\n");
+                    String text = engine.documentStore == null ? null : engine.documentStore.get(docID);
+                    if (text == null) {
+                        // not in the store, read from the file the document was indexed from
+                        try {
+                            text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+                        } catch (IOException | InvalidPathException exc) {
+                            contents.append("No file found\n");
                         }
                     }
-
-                    boolean foundFile = false;
-                    while (!fqueue.isEmpty()) {
-                        String dirName = fqueue.poll();
-                        File file = new File(dirName, fileName);
-
-                        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                            while ((line = br.readLine()) != null) {
-                                contents += line.trim() + "\n";
-                            }
-                            foundFile = true;
-                            break;
-                        } catch (FileNotFoundException exc) {
-                        } catch (IOException exc) {
-                        } catch (NullPointerException exc) {
+                    if (text != null) {
+                        for (String line : text.split("\r?\n")) {
+                            contents.append(line.trim()).append("\n");
                         }
                     }
-
-                    if (!foundFile) {
-                        contents += "No file found\n";
-                    }
-
-                    docTextView.setText(contents);
+                    docTextView.setText(contents.toString());
                     docTextView.setCaretPosition(0);
                 }
             };
@@ -380,6 +398,31 @@ public class SearchGUI extends JFrame {
             result.add(box[i]);
             result.add(label);
 
+            // documents similar to this one, from its term vector
+            IndexSnapshot snapshot = engine.searcher.snapshot();
+            if (snapshot != null && snapshot.forwardIndex != null) {
+                JButton similarBut = new JButton("More like this");
+                similarBut.setFont(resultFont);
+                Action similar = new AbstractAction() {
+                    public void actionPerformed(ActionEvent e) {
+                        displayInfoText(" ");
+                        long startTime = System.currentTimeMillis();
+                        results = engine.searcher.moreLikeThis(docID, normType);
+                        // no query terms to show in the snippets
+                        query = null;
+                        long elapsedTime = System.currentTimeMillis() - startTime;
+                        if (results != null) {
+                            displayResults(MAX_RESULTS, elapsedTime / 1000.0);
+                        } else {
+                            displayInfoText("Found 0 matching document(s)");
+                        }
+                    }
+                };
+                similarBut.addActionListener(similar);
+                result.add(Box.createRigidArea(new Dimension(5, 0)));
+                result.add(similarBut);
+            }
+
             resultWindow.add(result);
         }
         // If there were many results, give the user an option to see all of them.
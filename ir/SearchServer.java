@@ -0,0 +1,435 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ *  Serves the engine over HTTP on localhost, without the GUI.
+ *
+ *      GET /search?q=...&type=ranked&ranking=tfidf&norm=words&offset=0&limit=10
+ *      GET /spell?q=...&limit=5
+ *      GET /complete?q=...&limit=10
+ *
+ *  type is one of intersection, phrase, ranked, proximity and boolean,
+ *  ranking one of tfidf, pagerank, combination and hits, and norm one of
+ *  words and euclidean. The answers are JSON. A search returns the results
+ *  from offset to offset + limit, with the total number of results and, if
+ *  the texts are stored, their snippets.
+ *
+ *  The requests are run on WORKER_THREADS threads, all searching the index
+ *  at once, see IndexSnapshot. At most MAX_PENDING requests are running or
+ *  waiting for a thread; the ones after that are answered 503 at once by
+ *  the thread accepting them, so that an overloaded server still answers
+ *  quickly instead of queueing without bound. Every answer has a
+ *  Server-Timing header with the time the request waited for a thread, the
+ *  time of the search and of the snippets, and the total time.
+ */
+public class SearchServer {
+
+    /** The number of threads running requests. */
+    static final int WORKER_THREADS = 16;
+
+    /** Requests running or waiting for a thread beyond this many are refused. */
+    static final int MAX_PENDING = 4 * WORKER_THREADS;
+
+    /** The default and the largest number of results of a page. */
+    static final int DEFAULT_LIMIT = 10;
+    static final int MAX_LIMIT = 100;
+
+    /**
+     *  Without a forward index, the document frequencies of only this many
+     *  completions of a word, the shortest, are looked up on disk.
+     */
+    static final int MAX_EXPANSIONS = 64;
+
+    Engine engine;
+
+    private HttpServer server;
+
+    private ExecutorService workers;
+
+    /** A permit for every request running or waiting for a thread. */
+    private Semaphore admitted = new Semaphore(MAX_PENDING);
+
+    /** Set on the accepting thread while it refuses a request. */
+    private static final ThreadLocal<Boolean> refused = ThreadLocal.withInitial(() -> false);
+
+    /** When the request run by the thread was accepted, in nanoseconds. */
+    private static final ThreadLocal<Long> acceptedAt = new ThreadLocal<>();
+
+
+    public SearchServer( Engine engine ) {
+        this.engine = engine;
+    }
+
+    /**
+     *  Starts serving on a port of localhost.
+     */
+    public void start( int port ) throws IOException {
+        workers = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "search-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", handler(this::search));
+        server.createContext("/spell", handler(this::spell));
+        server.createContext("/complete", handler(this::complete));
+        server.setExecutor(admission());
+        server.start();
+        System.err.println("Serving on http://localhost:" + server.getAddress().getPort() + "/search");
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    /** The port served, useful when started on port 0. */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     *  Hands the requests admitted to the workers, and runs the others on
+     *  the accepting thread, marked as refused.
+     */
+    private Executor admission() {
+        return runnable -> {
+            long now = System.nanoTime();
+            if (admitted.tryAcquire()) {
+                workers.execute(() -> {
+                    acceptedAt.set(now);
+                    try {
+                        runnable.run();
+                    } finally {
+                        admitted.release();
+                    }
+                });
+            } else {
+                refused.set(true);
+                acceptedAt.set(now);
+                try {
+                    runnable.run();
+                } finally {
+                    refused.set(false);
+                }
+            }
+        };
+    }
+
+    /** What a request is answered with. */
+    private static class Response {
+        int status = 200;
+        StringBuilder json = new StringBuilder();
+        StringBuilder timing = new StringBuilder();
+
+        void time( String name, long nanos ) {
+            if (timing.length() > 0) timing.append(", ");
+            timing.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+        }
+    }
+
+    /**
+     *  Answers a request on the index snapshot taken when it started, so
+     *  that its search and its results are of the same index.
+     */
+    private interface Endpoint {
+        void answer( IndexSnapshot snapshot, Map<String,String> parameters, Response response );
+    }
+
+    private HttpHandler handler( Endpoint endpoint ) {
+        return exchange -> {
+            Response response = new Response();
+            long start = acceptedAt.get() != null ? acceptedAt.get() : System.nanoTime();
+            response.time("queue", System.nanoTime() - start);
+            try {
+                IndexSnapshot snapshot = engine.searcher.snapshot();
+                if (refused.get()) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    error(response, 503, "overloaded");
+                } else if (!"GET".equals(exchange.getRequestMethod())) {
+                    error(response, 405, "only GET is supported");
+                } else if (snapshot == null) {
+                    exchange.getResponseHeaders().set("Retry-After", "5");
+                    error(response, 503, "the index is not ready");
+                } else {
+                    endpoint.answer(snapshot, parameters(exchange), response);
+                }
+            } catch ( IllegalArgumentException e ) {
+                error(response, 400, e.getMessage());
+            } catch ( RuntimeException e ) {
+                e.printStackTrace();
+                error(response, 500, e.toString());
+            }
+            response.time("total", System.nanoTime() - start);
+            send(exchange, response);
+        };
+    }
+
+    private static void error( Response response, int status, String message ) {
+        response.status = status;
+        response.json.setLength(0);
+        response.json.append("{\"error\":");
+        quote(response.json, message);
+        response.json.append('}');
+    }
+
+    private static void send( HttpExchange exchange, Response response ) throws IOException {
+        byte[] body = response.json.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("Server-Timing", response.timing.toString());
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String,String> parameters( HttpExchange exchange ) {
+        HashMap<String,String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return parameters;
+        try {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0) {
+                    parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+                } else {
+                    parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                                   URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        } catch ( UnsupportedEncodingException e ) {
+            e.printStackTrace();
+        }
+        return parameters;
+    }
+
+    private static String required( Map<String,String> parameters, String name ) {
+        String value = parameters.get(name);
+        if (value == null || value.trim().isEmpty()) throw new IllegalArgumentException("missing " + name);
+        return value.trim();
+    }
+
+    private static int number( Map<String,String> parameters, String name, int value, int min, int max ) {
+        String text = parameters.get(name);
+        if (text == null) return value;
+        try {
+            value = Integer.parseInt(text.trim());
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException(name + " is not a number");
+        }
+        if (value < min || value > max) throw new IllegalArgumentException(name + " must be from " + min + " to " + max);
+        return value;
+    }
+
+    static QueryType queryType( String name ) {
+        switch (name.toLowerCase()) {
+            case "intersection": return QueryType.INTERSECTION_QUERY;
+            case "phrase": return QueryType.PHRASE_QUERY;
+            case "ranked": return QueryType.RANKED_QUERY;
+            case "proximity": return QueryType.PROXIMITY_QUERY;
+            case "boolean": return QueryType.BOOLEAN_QUERY;
+            default: throw new IllegalArgumentException("unknown type " + name);
+        }
+    }
+
+    static RankingType rankingType( String name ) {
+        switch (name.toLowerCase()) {
+            case "tfidf": return RankingType.TF_IDF;
+            case "pagerank": return RankingType.PAGERANK;
+            case "combination": return RankingType.COMBINATION;
+            case "hits": return RankingType.HITS;
+            default: throw new IllegalArgumentException("unknown ranking " + name);
+        }
+    }
+
+    static NormalizationType normalizationType( String name ) {
+        switch (name.toLowerCase()) {
+            case "words": return NormalizationType.NUMBER_OF_WORDS;
+            case "euclidean": return NormalizationType.EUCLIDEAN;
+            default: throw new IllegalArgumentException("unknown norm " + name);
+        }
+    }
+
+    /**
+     *  A page of the results of a query.
+     */
+    private void search( IndexSnapshot snapshot, Map<String,String> parameters, Response response ) {
+        QueryType queryType = queryType(parameters.getOrDefault("type", "ranked"));
+        RankingType rankingType = rankingType(parameters.getOrDefault("ranking", "tfidf"));
+        NormalizationType normalizationType = normalizationType(parameters.getOrDefault("norm", "words"));
+        int offset = number(parameters, "offset", 0, 0, Integer.MAX_VALUE);
+        int limit = number(parameters, "limit", DEFAULT_LIMIT, 0, MAX_LIMIT);
+        String text = required(parameters, "q");
+        // the operators of a boolean query are in capitals, as in the GUI
+        if (queryType != QueryType.BOOLEAN_QUERY) text = text.toLowerCase();
+        Query query = new Query(text);
+
+        long start = System.nanoTime();
+        int depth = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        ResultCache.Result results = engine.searcher.search(snapshot, query, queryType, rankingType, normalizationType, depth);
+        response.time("search", System.nanoTime() - start);
+
+        int total = results.total;
+        int from = Math.min(offset, total);
+        int to = (int) Math.min((long) from + limit, total);
+        int[] docIDs = new int[to - from];
+        for (int i = from; i < to; ++i) {
+            docIDs[i - from] = results.docIDs[i];
+        }
+        String[] snippets = null;
+        Snippets snippet = engine.snippets;
+        if (snippet != null && !"0".equals(parameters.get("snippets")) && docIDs.length > 0) {
+            start = System.nanoTime();
+            snippets = snippet.snippets(query, docIDs);
+            response.time("snippets", System.nanoTime() - start);
+        }
+
+        DocumentTable docTable = snapshot.index.docTable();
+        StringBuilder json = response.json;
+        json.append("{\"query\":");
+        quote(json, text);
+        json.append(",\"type\":\"").append(queryType).append('"');
+        if (queryType == QueryType.RANKED_QUERY) {
+            json.append(",\"ranking\":\"").append(rankingType).append("\",\"norm\":\"").append(normalizationType).append('"');
+        }
+        json.append(",\"total\":").append(total).append(",\"offset\":").append(from).append(",\"results\":[");
+        for (int i = from; i < to; ++i) {
+            if (i > from) json.append(',');
+            json.append("{\"rank\":").append(i).append(",\"docID\":").append(results.docIDs[i]).append(",\"name\":");
+            quote(json, docTable.name(results.docIDs[i]));
+            if (queryType == QueryType.RANKED_QUERY) {
+                json.append(",\"score\":").append(Double.isFinite(results.scores[i]) ? results.scores[i] : 0);
+            }
+            if (snippets != null) {
+                json.append(",\"snippet\":");
+                quote(json, snippets[i - from]);
+            }
+            json.append('}');
+        }
+        json.append("]}");
+    }
+
+    /**
+     *  Spelling suggestions for a query, see SpellChecker.
+     */
+    private void spell( IndexSnapshot snapshot, Map<String,String> parameters, Response response ) {
+        int limit = number(parameters, "limit", 5, 1, MAX_LIMIT);
+        String text = required(parameters, "q").toLowerCase();
+        long start = System.nanoTime();
+        String[] suggestions = engine.speller == null ? null : engine.speller.check(new Query(text), limit);
+        response.time("spell", System.nanoTime() - start);
+        StringBuilder json = response.json;
+        json.append("{\"query\":");
+        quote(json, text);
+        json.append(",\"suggestions\":[");
+        for (int i = 0; suggestions != null && i < suggestions.length && i < limit; ++i) {
+            if (i > 0) json.append(',');
+            quote(json, suggestions[i]);
+        }
+        json.append("]}");
+    }
+
+    /**
+     *  Completions of the last word of a query: the words of the index
+     *  starting with it, from the k-gram index, the most frequent first.
+     *  Without a forward index, the frequency of a word costs opening its
+     *  postings, so only the MAX_EXPANSIONS shortest words are ranked.
+     */
+    private void complete( IndexSnapshot snapshot, Map<String,String> parameters, Response response ) {
+        int limit = number(parameters, "limit", DEFAULT_LIMIT, 1, MAX_LIMIT);
+        String text = required(parameters, "q").toLowerCase();
+        int space = text.lastIndexOf(' ');
+        String head = text.substring(0, space + 1);
+        String prefix = text.substring(space + 1);
+
+        long start = System.nanoTime();
+        ArrayList<String> words = new ArrayList<>();
+        HashMap<String,Integer> df = new HashMap<>();
+        if (engine.kgIndex != null && !prefix.isEmpty() && !prefix.contains("*")) {
+            ArrayList<String> expansions = engine.kgIndex.wildcard(prefix + "*");
+            if (snapshot.forwardIndex == null && expansions.size() > MAX_EXPANSIONS) {
+                expansions.sort((w1, w2) -> w1.length() != w2.length() ? Integer.compare(w1.length(), w2.length()) : w1.compareTo(w2));
+                expansions.subList(MAX_EXPANSIONS, expansions.size()).clear();
+            }
+            for (String word : expansions) {
+                int frequency = documentFrequency(snapshot, word);
+                if (frequency == 0) continue;
+                words.add(word);
+                df.put(word, frequency);
+            }
+            words.sort((w1, w2) -> df.get(w1).equals(df.get(w2)) ? w1.compareTo(w2) : Integer.compare(df.get(w2), df.get(w1)));
+        }
+        response.time("complete", System.nanoTime() - start);
+
+        StringBuilder json = response.json;
+        json.append("{\"query\":");
+        quote(json, text);
+        json.append(",\"completions\":[");
+        for (int i = 0; i < words.size() && i < limit; ++i) {
+            if (i > 0) json.append(',');
+            json.append("{\"text\":");
+            quote(json, head + words.get(i));
+            json.append(",\"df\":").append(df.get(words.get(i))).append('}');
+        }
+        json.append("]}");
+    }
+
+    /**
+     *  The number of documents of a word, from the forward index if there
+     *  is one, which has them all in main memory.
+     */
+    private static int documentFrequency( IndexSnapshot snapshot, String word ) {
+        if (snapshot.forwardIndex != null) return snapshot.forwardIndex.df(word);
+        PostingsCursor cursor = snapshot.index.getCursor(word);
+        return cursor == null ? 0 : cursor.cost();
+    }
+
+    /**
+     *  Appends a string as a JSON string, or null.
+     */
+    static void quote( StringBuilder json, String text ) {
+        if (text == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
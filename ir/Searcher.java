@@ -9,20 +9,30 @@ package ir;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.abs;
 
 /**
  * Searches an index for results of a query.
+ *
+ * A searcher can run queries on many threads at once. Everything a query
+ * needs besides the indexes is local to it, and the indexes are read from
+ * the snapshot published last, see IndexSnapshot, which the query keeps to
+ * its end.
  */
 public class Searcher {
 
     /**
-     * The index to be searched by this Searcher.
+     * The indexes searched, null until published.
      */
-    Index index;
+    private volatile IndexSnapshot snapshot;
 
     /**
      * The k-gram index to be searched by this Searcher
@@ -31,40 +41,157 @@ public class Searcher {
 
     HITSRanker hitsRanker;
 
-    Double totalTfIdf = 0.;
-    Double totalPageRank= 0.;
+    /**
+     * The log of the queries searched, null if they are not logged.
+     */
+    volatile QueryLog queryLog;
+
+    /**
+     * The results of the queries searched last.
+     */
+    final ResultCache resultCache = new ResultCache(ResultCache.DEFAULT_BYTES);
+
+    /**
+     * The matches of the pairs of terms that many queries share.
+     */
+    final PairCache pairCache = new PairCache(PairCache.DEFAULT_BYTES);
+
+    /**
+     * The queries being evaluated, by snapshot generation and result cache key.
+     */
+    final SingleFlight<String,PostingsList> searches = new SingleFlight<>();
 
     static double Widf = 0.6;
     static double Wpr = 0.4;
 
+    /**
+     * A ranked query with more terms than this, typically one expanded by
+     * relevance feedback, is evaluated in the long query mode, see
+     * searchLong. Only its termBudget terms with the largest weights are
+     * kept.
+     */
+    static final int LONG_QUERY = 32;
+    static int termBudget = 200;
+
+    /** The number of threads opening the cursors of a query, see processQuery. */
+    static final int FETCH_THREADS = 8;
+
+    private static ExecutorService fetchers;
+
+    /** Window of a proximity query without a NEAR/k operator. */
+    static final int DEFAULT_WINDOW = 5;
+
     /**
      * Constructor
      */
     public Searcher(Index index, KGramIndex kgIndex, HITSRanker hitsRanker) {
-        this.index = index;
-        this.kgIndex = kgIndex;
+        this(index, kgIndex);
         this.hitsRanker = hitsRanker;
     }
 
     public Searcher(Index index, KGramIndex kgIndex) {
-        this.index = index;
+        this(kgIndex);
+        publish(new IndexSnapshot(index));
+    }
+
+    /**
+     * A searcher with nothing to search yet, see publish.
+     */
+    public Searcher(KGramIndex kgIndex) {
         this.kgIndex = kgIndex;
     }
 
-    private ArrayList<PostingsList> processQuery(Query query, QueryType queryType) {
-        ArrayList<PostingsList> postingsLists = new ArrayList<>();
+    /**
+     * Makes the queries started from now on search the given indexes. The
+     * queries already running finish on the indexes they started with.
+     */
+    public void publish(IndexSnapshot snapshot) {
+        this.snapshot = snapshot;
+        resultCache.clear();
+        pairCache.clear();
+    }
+
+    /**
+     * The indexes searched, or null if none were published yet.
+     */
+    public IndexSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The documents most similar to a document, other than itself: its terms,
+     * weighted by tf-idf in the document, are a ranked query, of which only
+     * the termBudget heaviest terms are kept. Null without a forward index.
+     */
+    public PostingsList moreLikeThis(int docID, NormalizationType normalizationType) {
+        IndexSnapshot snapshot = this.snapshot;
+        if (snapshot == null) return null;
+        ForwardIndex forwardIndex = snapshot.forwardIndex;
+        int[] vector = forwardIndex == null ? null : forwardIndex.vector(docID);
+        if (vector == null) return null;
+        int N = snapshot.index.docTable().size();
+        Query query = new Query();
+        for (int k = 0; k < vector.length; k += 2) {
+            double idf = Math.log((double) N / forwardIndex.df(vector[k]));
+            query.queryterm.add(query.new QueryTerm(forwardIndex.term(vector[k]), vector[k + 1] * idf));
+        }
+        PostingsList answer = search(snapshot, query, QueryType.RANKED_QUERY, RankingType.TF_IDF, normalizationType);
+        if (answer == null) return null;
+        answer.getList().removeIf(postingsEntry -> postingsEntry.docID == docID);
+        if (answer.isEmpty()) return null;
+        return answer;
+    }
+
+    /**
+     * Opens a cursor for every term of the query, null for the terms not in
+     * the index. On a persistent index every term means a few random reads,
+     * from the dictionary and the postings file, so the cursors of a query with
+     * several terms are opened concurrently on the fetch threads, which also
+     * read and decode their first blocks.
+     */
+    private ArrayList<PostingsCursor> processQuery(Index index, Query query) {
+        ArrayList<PostingsCursor> cursors = new ArrayList<>();
+        if (query.size() < 2 || !(index instanceof PersistentHashedIndex)) {
+            for (Query.QueryTerm q : query.queryterm) {
+                cursors.add(index.getCursor(q.term));
+            }
+            return cursors;
+        }
 
+        ArrayList<Future<PostingsCursor>> fetches = new ArrayList<>();
         for (Query.QueryTerm q : query.queryterm) {
-            String term = q.term;
-            PostingsList post = index.getPostings(term);
-            if (post == null) {
-                postingsLists.add(null);
-            } else {
-                postingsLists.add(new PostingsList(post, q.weight));
+            fetches.add(fetchers().submit(() -> fetch(index, q.term)));
+        }
+        for (Future<PostingsCursor> fetch : fetches) {
+            try {
+                cursors.add(fetch.get());
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                cursors.add(null);
             }
         }
+        return cursors;
+    }
 
-        return postingsLists;
+    private PostingsCursor fetch(Index index, String term) {
+        PostingsCursor cursor = index.getCursor(term);
+        if (cursor instanceof DiskPostingsCursor) ((DiskPostingsCursor) cursor).prefetch();
+        return cursor;
+    }
+
+    /**
+     * The fetch threads, shared by all searchers. The threads are daemons, so
+     * that they don't keep the engine from exiting.
+     */
+    private static synchronized ExecutorService fetchers() {
+        if (fetchers == null) {
+            fetchers = Executors.newFixedThreadPool(FETCH_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "postings-fetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return fetchers;
     }
 
     /**
@@ -73,323 +200,604 @@ public class Searcher {
      * @return A postings list representing the result of the query.
      */
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType) {
+        IndexSnapshot snapshot = this.snapshot;
+        if (snapshot == null) return null;
+        return search(snapshot, query, queryType, rankingType, normalizationType);
+    }
 
-        // list of postingsList fot each token in the query
-        ArrayList<PostingsList> postingsLists = processQuery(query, queryType);
+    /**
+     * Searches, and logs the query to the query log if there is one.
+     */
+    private PostingsList search(IndexSnapshot snapshot, Query query, QueryType queryType, RankingType rankingType,
+                                NormalizationType normalizationType) {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        String key = ResultCache.key(query, queryType, rankingType, normalizationType);
+        ResultCache.Result cached = cached(snapshot, key, queryType, Integer.MAX_VALUE);
+        PostingsList answer = cached != null ? cached.answer()
+                                             : answer(snapshot, key, query, queryType, rankingType, normalizationType);
+        log(query, queryType, rankingType, normalizationType, answer == null ? 0 : answer.size(), startTime, start);
+        return answer;
+    }
 
-        //query.queryterm.forEach((q) -> postingsLists.add(new PostingsList(index.getPostings(q.term), q.weight)));
-        //postingsLists.removeAll(Collections.singleton(null));
+    /**
+     * Searches a snapshot of the index for the first <code>depth</code>
+     * documents matching the query, e.g. for a page of results, and logs the
+     * query. The first documents of a query are cached, see ResultCache, so
+     * a query asked again for a page within them is not searched again.
+     */
+    ResultCache.Result search(IndexSnapshot snapshot, Query query, QueryType queryType, RankingType rankingType,
+                              NormalizationType normalizationType, int depth) {
+        long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
+        String key = ResultCache.key(query, queryType, rankingType, normalizationType);
+        ResultCache.Result result = cached(snapshot, key, queryType, depth);
+        if (result == null) {
+            PostingsList answer = answer(snapshot, key, query, queryType, rankingType, normalizationType);
+            result = new ResultCache.Result(snapshot.generation, answer, Math.max(depth, ResultCache.TOP_K));
+        }
+        log(query, queryType, rankingType, normalizationType, result.total, startTime, start);
+        return result;
+    }
 
-        if (postingsLists.isEmpty()) return null;
+    private void log(Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType,
+                     int results, long startTime, long start) {
+        QueryLog queryLog = this.queryLog;
+        if (queryLog != null) {
+            queryLog.log(query, queryType, rankingType, normalizationType, results, startTime, System.nanoTime() - start);
+        }
+    }
 
-        switch (queryType) {
-            case INTERSECTION_QUERY:
-                if (postingsLists.contains(null)) return null;
-                if (postingsLists.size() == 1) return postingsLists.get(0);
-                return searchIntersection(postingsLists);
-            case PHRASE_QUERY:
-                if (postingsLists.contains(null)) return null;
-                if (postingsLists.size() == 1) return postingsLists.get(0);
-                return searchPhrase(postingsLists);
-            case RANKED_QUERY:
-                if (rankingType.equals(RankingType.COMBINATION)) {
-                    return combination(postingsLists, normalizationType);
-                } else
-                    return searchRanking(postingsLists, rankingType, normalizationType);
-            default:
-                return postingsLists.get(0); // just to do something
+    /**
+     * The result cached for a query, if it has the first <code>depth</code>
+     * documents, or null.
+     */
+    private ResultCache.Result cached(IndexSnapshot snapshot, String key, QueryType queryType, int depth) {
+        return ResultCache.caches(queryType) ? resultCache.get(key, snapshot.generation, depth) : null;
+    }
+
+    /**
+     * The result of a query, evaluated and cached. Identical queries searched
+     * at the same time are evaluated once, see SingleFlight, and the threads
+     * that waited get copies of the result.
+     */
+    private PostingsList answer(IndexSnapshot snapshot, String key, Query query, QueryType queryType,
+                                RankingType rankingType, NormalizationType normalizationType) {
+        try {
+            return searches.run(snapshot.generation + "\t" + key, () -> {
+                PostingsList answer = evaluate(snapshot, query, queryType, rankingType, normalizationType);
+                if (ResultCache.caches(queryType)) resultCache.put(key, snapshot.generation, answer);
+                return answer;
+            }, Searcher::copy);
+        } catch (InterruptedException e) {
+            // given up waiting for the same query on another thread
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
-    private PostingsList combination(ArrayList<PostingsList> postingsLists, NormalizationType normalizationType) {
-        PostingsList tfidf = searchRankingComb(postingsLists, RankingType.TF_IDF, normalizationType);
-        PostingsList pagerank = searchRankingComb(postingsLists, RankingType.PAGERANK, normalizationType);
-        totalTfIdf = 0.;
-        for (PostingsEntry postingsEntry : tfidf.getList()) {
-            totalTfIdf += postingsEntry.score;
+    /**
+     * A list of the same entries, for a caller to change as it likes.
+     */
+    private static PostingsList copy(PostingsList answer) {
+        if (answer == null) return null;
+        PostingsList copy = new PostingsList();
+        for (int i = 0; i < answer.size(); ++i) {
+            copy.addEntry(answer.get(i));
         }
+        return copy;
+    }
+
+    private PostingsList evaluate(IndexSnapshot snapshot, Query query, QueryType queryType, RankingType rankingType,
+                                  NormalizationType normalizationType) {
+
+        if (queryType == QueryType.PROXIMITY_QUERY) return searchProximity(snapshot, query);
+        if (queryType == QueryType.BOOLEAN_QUERY) return searchBoolean(snapshot, query);
 
-        totalPageRank = 0.;
-        for (PostingsEntry postingsEntry : pagerank.getList()) {
-            totalPageRank += postingsEntry.score;
+        // a cursor for each token in the query
+        ArrayList<PostingsCursor> cursors;
+        if (queryType == QueryType.RANKED_QUERY && query.size() > LONG_QUERY) {
+            query = prune(query);
+            cursors = snapshot.index.getCursors(terms(query));
+        } else {
+            cursors = processQuery(snapshot.index, query);
         }
 
-        PostingsList answer = new PostingsList();
+        if (cursors.isEmpty()) return null;
 
-        for (int i = 0; i < pagerank.size(); ++i) {
-            PostingsEntry p = pagerank.get(i);
-            PostingsEntry tf = tfidf.get(i);
-            if (p.docID != tf.docID) {
-                System.err.println("uuuuups");
-            } else {
-                double score = Widf * (tf.score/ totalTfIdf) + Wpr*(p.score/totalPageRank);
-                answer.addEntry(new PostingsEntry(p.docID, score));
-            }
+        switch (queryType) {
+            case INTERSECTION_QUERY:
+                if (cursors.contains(null)) return null;
+                return searchIntersection(snapshot, query, cursors);
+            case PHRASE_QUERY:
+                if (cursors.contains(null)) return null;
+                return searchPhrase(snapshot, query, cursors);
+            case RANKED_QUERY:
+                return searchRanking(snapshot, query, cursors, rankingType, normalizationType);
+            default:
+                return null;
         }
+    }
+
+    /**
+     * Ranked query, scored by the scorer of the ranking type, see LinearScorer.
+     * COMBINATION is scored in the same pass over the postings as TF_IDF.
+     */
+    private PostingsList searchRanking(IndexSnapshot snapshot, Query query, ArrayList<PostingsCursor> cursors,
+                                       RankingType rankingType, NormalizationType normalizationType) {
+
+        DocumentTable docTable = snapshot.index.docTable();
+        if (rankingType == RankingType.PAGERANK && snapshot.pageRankOrdered && cursors.size() <= LONG_QUERY)
+            return pagerankOrderedUnion(docTable, cursors);
 
+        Scorer scorer = LinearScorer.of(rankingType, normalizationType, docTable, Widf, Wpr);
+        PostingsList answer = union(docTable, query, cursors, scorer);
+        if (answer.isEmpty()) return null;
+        scorer.finish(answer);
+        if (rankingType == RankingType.HITS) return hitsRanker.rank(answer);
         Collections.sort(answer.getList());
         return answer;
     }
 
-
-    private PostingsList searchRankingComb(ArrayList<PostingsList> postingsLists, RankingType rankingType,
-                                           NormalizationType normalizationType) {
-
-        for (PostingsList postingsList : postingsLists) {
-            switch (rankingType) {
-                case TF_IDF:
-                    if (postingsLists.size() == 1) return searchTfidf1(postingsLists.get(0), normalizationType);
-                    calculateTfIdf(postingsList, normalizationType);
-                    break;
-                case PAGERANK:
-                    if (postingsLists.size() == 1) return pagerank1(postingsLists.get(0));
-                    calculatePageRank(postingsList);
-                    break;
+    /**
+     * PAGERANK ranking on an index numbered by pagerank: the union of the lists
+     * in docID order already is the ranking, so no sort is needed and any
+     * prefix of the answer is the top of the ranking.
+     */
+    private PostingsList pagerankOrderedUnion(DocumentTable docTable, ArrayList<PostingsCursor> cursors) {
+        PostingsList answer = new PostingsList();
+        PriorityQueue<Head> heads = heads(cursors);
+        int lastDocID = -1;
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            if (head.cursor.docID() != lastDocID) {
+                lastDocID = head.cursor.docID();
+                answer.addEntry(new PostingsEntry(lastDocID, docTable.pageRank(lastDocID)));
             }
+            if (head.cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) heads.add(head);
         }
-        PostingsList answer = mergePostingList(postingsLists.get(0), postingsLists.get(1), rankingType);
-        for (PostingsList postingsList : postingsLists) {
-            answer = mergePostingList(answer, postingsList, rankingType);
-        }
+        if (answer.isEmpty()) return null;
         return answer;
     }
 
+    /** A cursor on the heap of a union, with the position of its term in the query. */
+    private static class Head {
+        final PostingsCursor cursor;
+        final int term;
+
+        Head(PostingsCursor cursor, int term) {
+            this.cursor = cursor;
+            this.term = term;
+        }
+    }
 
-    private PostingsList searchTfidf1(PostingsList postingsList, NormalizationType normalizationType) {
-        calculateTfIdf(postingsList, normalizationType);
-        Collections.sort(postingsList.getList());
-        return postingsList;
+    /**
+     * The cursors not exhausted, moved to their first document, in a heap on
+     * their docID. Ties are broken on the position of the term in the query.
+     */
+    private PriorityQueue<Head> heads(ArrayList<PostingsCursor> cursors) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, cursors.size()), (h1, h2) -> {
+            int d = Integer.compare(h1.cursor.docID(), h2.cursor.docID());
+            return d != 0 ? d : Integer.compare(h1.term, h2.term);
+        });
+        for (int c = 0; c < cursors.size(); ++c) {
+            PostingsCursor cursor = cursors.get(c);
+            if (cursor != null && cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) heads.add(new Head(cursor, c));
+        }
+        return heads;
     }
 
-    private PostingsList pagerank1(PostingsList postingsList) {
-        calculatePageRank(postingsList);
-        Collections.sort(postingsList.getList());
-        return postingsList;
+    private ArrayList<String> terms(Query query) {
+        ArrayList<String> terms = new ArrayList<>();
+        for (Query.QueryTerm q : query.queryterm) {
+            terms.add(q.term);
+        }
+        return terms;
     }
 
-    private PostingsList searchRanking(ArrayList<PostingsList> postingsLists, RankingType rankingType,
-                                       NormalizationType normalizationType) {
+    /**
+     * The termBudget terms of the query with the largest weights. The weights
+     * of the terms added by relevance feedback are small, and the terms of
+     * the original query keep theirs.
+     */
+    private Query prune(Query query) {
+        if (query.size() <= termBudget) return query;
+        Query pruned = query.copy();
+        pruned.queryterm.sort((q1, q2) -> Double.compare(q2.weight, q1.weight));
+        pruned.queryterm.subList(termBudget, pruned.size()).clear();
+        return pruned;
+    }
 
-        for (PostingsList postingsList : postingsLists) {
-            if (postingsList == null) continue;
-            switch (rankingType) {
-                case TF_IDF:
-                    if (postingsLists.size() == 1) return searchTfidf1(postingsLists.get(0),normalizationType);
-                    calculateTfIdf(postingsList,normalizationType);
-                    break;
-                case PAGERANK:
-                    if (postingsLists.size() == 1) return pagerank1(postingsLists.get(0));
-                    calculatePageRank(postingsList);
-                    break;
-                case HITS:
-                    if (postingsLists.size() == 1) return hitsRanker.rank(postingsLists.get(0));
-                    return calculateHits(postingsLists);
+    /**
+     * The scores of a long query, term at a time: the postings of every term
+     * are added to an array indexed by docID in one pass, instead of merging
+     * the cursors of all terms on a heap. The static score of a document, its
+     * pagerank, is combined with the sum once all terms are added, so a
+     * PAGERANK query only marks the documents matched.
+     */
+    private PostingsList searchLong(DocumentTable docTable, Query query, ArrayList<PostingsCursor> cursors, Scorer scorer) {
+        int N = docTable.size();
+        double[] scores = new double[N];
+        boolean[] matched = new boolean[N];
+        for (int c = 0; c < cursors.size(); ++c) {
+            PostingsCursor cursor = cursors.get(c);
+            if (cursor == null) continue;
+            if (!scorer.usesTerms()) {
+                for (int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+                    matched[docID] = true;
+                }
+                continue;
+            }
+            double idf = Math.log((double) N / cursor.cost());
+            double weight = query.queryterm.get(c).weight;
+            for (int docID = cursor.nextDoc(); docID != PostingsCursor.NO_MORE_DOCS; docID = cursor.nextDoc()) {
+                scores[docID] += scorer.term(docID, cursor.freq(), idf, weight);
+                matched[docID] = true;
             }
         }
-        if (postingsLists.size() < 2) return null;
-        return union(postingsLists, rankingType);
-    }
 
-    private PostingsList union(ArrayList<PostingsList> postingsLists, RankingType rankingType) {
-        PostingsList answer = mergePostingList(postingsLists.get(0), postingsLists.get(1), rankingType);
-        for (int i = 2; i < postingsLists.size(); ++i) {
-            answer = mergePostingList(answer, postingsLists.get(i), rankingType);
+        PostingsList answer = new PostingsList();
+        for (int docID = 0; docID < N; ++docID) {
+            if (!matched[docID]) continue;
+            answer.addEntry(new PostingsEntry(docID, scorer.document(docID, scores[docID])));
         }
-        Collections.sort(answer.getList());
-        if (answer.isEmpty()) return null;
         return answer;
     }
 
-    private PostingsList mergePostingList(PostingsList p1, PostingsList p2,RankingType rankingType) {
-        PostingsList answer = new PostingsList();
+    /**
+     * All documents matching at least one term, in docID order, merging the
+     * cursors of the terms. The scores of the terms of a document are summed
+     * as its cursors go by, and the document is scored once the heap has
+     * moved past it.
+     */
+    private PostingsList union(DocumentTable docTable, Query query, ArrayList<PostingsCursor> cursors, Scorer scorer) {
+        if (cursors.size() > LONG_QUERY) return searchLong(docTable, query, cursors, scorer);
+        int N = docTable.size();
+        double[] idf = new double[cursors.size()];
+        for (int c = 0; c < cursors.size(); ++c) {
+            if (cursors.get(c) != null) idf[c] = Math.log((double) N / cursors.get(c).cost());
+        }
 
-        if (p1 == null) p1 = new PostingsList();
-        if (p2 == null) p2 = new PostingsList();
-
-        int i = 0;
-        int j = 0;
-        while (i < p1.size() && j < p2.size()) {
-            PostingsEntry postingsEntry1 = p1.get(i);
-            PostingsEntry postingsEntry2 = p2.get(j);
-            if (postingsEntry1.docID == postingsEntry2.docID) {
-                double score = 0.;
-                switch (rankingType) {
-                    case TF_IDF:
-                        score = postingsEntry1.score + postingsEntry2.score;
-                        break;
-                    case PAGERANK:
-                        score = postingsEntry1.score;
-                        break;
-                    case COMBINATION:
-                        score = Widf * (postingsEntry1.score/ totalTfIdf) + Wpr*(postingsEntry2.score/totalPageRank);
-                        break;
-                    case HITS:
-                        score = 0; // we don't care
-                }
+        PostingsList answer = new PostingsList();
+        PriorityQueue<Head> heads = heads(cursors);
+        PostingsEntry last = null;
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            PostingsCursor cursor = head.cursor;
+            int docID = cursor.docID();
+            if (last == null || last.docID != docID) {
+                if (last != null) last.score = scorer.document(last.docID, last.score);
+                last = new PostingsEntry(docID, 0.);
+                answer.addEntry(last);
+            }
+            if (scorer.usesTerms()) {
+                last.score += scorer.term(docID, cursor.freq(), idf[head.term], query.queryterm.get(head.term).weight);
+            }
+            if (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) heads.add(head);
+        }
+        if (last != null) last.score = scorer.document(last.docID, last.score);
+        return answer;
+    }
 
-                answer.addEntry(new PostingsEntry(postingsEntry1.docID, score));
-                ++i;
-                ++j;
-            } else if (postingsEntry1.docID < postingsEntry2.docID) {
-                answer.addEntry(postingsEntry1);
-                i++;
+    /**
+     * Intersection of the cursors of all terms, see Conjunction. When at least
+     * two terms are dense, their doc sets are ANDed 64 documents at a time, and
+     * the documents of the other terms are filtered against the result. Two
+     * terms of a cached pair are replaced by their intersection, see intersectPair.
+     */
+    private PostingsList searchIntersection(IndexSnapshot snapshot, Query query, ArrayList<PostingsCursor> cursors) {
+        ArrayList<String> terms = terms(query);
+        cursors = new ArrayList<>(cursors);
+        intersectPair(snapshot, terms, cursors);
+
+        RoaringDocSet dense = null;
+        int denseTerms = 0;
+        ArrayList<PostingsCursor> sparse = new ArrayList<>();
+        for (int i = 0; i < cursors.size(); ++i) {
+            RoaringDocSet docSet = terms.get(i) == null ? null : snapshot.index.getDocSet(terms.get(i));
+            if (docSet == null) {
+                sparse.add(cursors.get(i));
             } else {
-                answer.addEntry(postingsEntry2);
-                ++j;
+                dense = dense == null ? docSet : dense.and(docSet);
+                ++denseTerms;
             }
         }
-        if (i < p1.size()) {
-            answer.addAll(p1, i);
-        } else if (j < p2.size()) {
-            answer.addAll(p2, j);
+        if (denseTerms < 2) {
+            dense = null;
+            sparse = cursors;
         }
-        return answer;
-    }
 
-    private void calculatePageRank(PostingsList postingsList) {
-        for (PostingsEntry postingsEntry : postingsList.getList()) {
-            postingsEntry.score = index.pageRank.getOrDefault(postingsEntry.docID, 0.);
+        PostingsList answer = new PostingsList();
+        if (sparse.isEmpty()) {
+            for (int docID : dense.toArray()) {
+                answer.addEntry(new PostingsEntry(docID, 0.));
+            }
+            return answer;
         }
+        Conjunction documents = new Conjunction(sparse.toArray(new PostingsCursor[0]));
+        while (documents.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            if (dense == null || dense.contains(documents.docID())) {
+                answer.addEntry(new PostingsEntry(documents.docID(), 0.));
+            }
+        }
+        return answer;
     }
 
-    private PostingsList calculateHits(ArrayList<PostingsList> postingsLists) {
-
-        PostingsList answer = mergePostingList(postingsLists.get(0), postingsLists.get(1), RankingType.HITS);
-        for (PostingsList postingsList : postingsLists) {
-            answer = mergePostingList(answer, postingsList, RankingType.HITS);
+    /**
+     * Counts the pairs of terms of an intersection in the pair cache, and
+     * replaces the cursors of the two terms of the smallest cached pair by a
+     * cursor over their intersection, the term of which is null. Without a
+     * cached pair, the pair counted most often is intersected and cached, if
+     * it was counted often enough.
+     */
+    private void intersectPair(IndexSnapshot snapshot, ArrayList<String> terms, ArrayList<PostingsCursor> cursors) {
+        ArrayList<String> distinct = new ArrayList<>();
+        for (String term : terms) {
+            if (!distinct.contains(term) && distinct.size() < PairCache.MAX_PAIR_TERMS) distinct.add(term);
+        }
+        if (distinct.size() < 2) return;
+
+        PairCache.Pair pair = null;
+        String[] pairTerms = null;
+        String[] frequent = null;
+        int mostFrequent = PairCache.ADMIT_FREQUENCY - 1;
+        for (int i = 0; i < distinct.size(); ++i) {
+            for (int j = i + 1; j < distinct.size(); ++j) {
+                String key = PairCache.intersectionKey(distinct.get(i), distinct.get(j));
+                int frequency = pairCache.count(key);
+                PairCache.Pair cached = pairCache.get(key, snapshot.generation);
+                if (cached != null && (pair == null || cached.size() < pair.size())) {
+                    pair = cached;
+                    pairTerms = new String[] { distinct.get(i), distinct.get(j) };
+                } else if (cached == null && frequency > mostFrequent) {
+                    mostFrequent = frequency;
+                    frequent = new String[] { distinct.get(i), distinct.get(j), key };
+                }
+            }
+        }
+        if (pair == null && frequent == null) {
+            pairCache.miss();
+            return;
         }
 
-        return hitsRanker.rank(answer);
-    }
-
-    private void calculateTfIdf(PostingsList postingsList, NormalizationType normalizationType) {
-        int N = index.docNames.size();
-        int df = postingsList.size();
-        double idf = Math.log((double) N / df);
-        for (PostingsEntry postingsEntry : postingsList.getList()) {
-            int tf = postingsEntry.offsets.size();
-            double lend;
-            if (normalizationType.equals(NormalizationType.EUCLIDEAN)) {
-                lend = index.euclideanLength.get(postingsEntry.docID);
+        long walked = 0;
+        ArrayList<PostingsCursor> replaced = new ArrayList<>();
+        String[] replacedTerms = pair != null ? pairTerms : frequent;
+        for (int i = terms.size() - 1; i >= 0; --i) {
+            if (terms.get(i).equals(replacedTerms[0]) || terms.get(i).equals(replacedTerms[1])) {
+                walked += cursors.get(i).cost();
+                replaced.add(cursors.remove(i));
+                terms.remove(i);
             }
-            else lend = Double.valueOf(index.docLengths.get(postingsEntry.docID));
-            double score = calculate_tf_idf(lend, tf, idf);
-            postingsEntry.score = score * postingsList.weight;
         }
+        if (pair == null) {
+            pair = PairCache.Pair.of(snapshot.generation, new Conjunction(replaced.toArray(new PostingsCursor[0])));
+            pairCache.put(frequent[2], pair);
+            pairCache.miss();
+        } else {
+            pairCache.hit(walked - pair.size());
+        }
+        terms.add(null);
+        cursors.add(pair.cursor());
     }
 
+    /**
+     * Proximity query, e.g. "a near/5 b c": the documents where all terms occur
+     * within a window of 5 words, in any order. With "onear/k" the terms must
+     * come in the order of the query. The window is the k of the last operator.
+     * The answer holds the start positions of the windows of every document.
+     */
+    private PostingsList searchProximity(IndexSnapshot snapshot, Query query) {
+        int k = DEFAULT_WINDOW;
+        boolean ordered = false;
+        ArrayList<String> terms = new ArrayList<>();
+        for (Query.QueryTerm q : query.queryterm) {
+            String term = q.term.toLowerCase();
+            if (term.matches("o?near/\\d+")) {
+                ordered = term.startsWith("o");
+                k = Integer.parseInt(term.substring(term.indexOf('/') + 1));
+            }
+        }
+        for (Query.QueryTerm q : query.queryterm) {
+            if (q.term.toLowerCase().matches("o?near/\\d+")) continue;
+            // a term twice in an unordered window is only needed once
+            if (ordered || !terms.contains(q.term)) terms.add(q.term);
+        }
+        if (terms.isEmpty()) return null;
 
-    private double calculate_tf_idf(double lend, int tf, double idf) {
-        return tf * idf / lend;
-    }
+        PostingsCursor[] cursors = new PostingsCursor[terms.size()];
+        for (int t = 0; t < terms.size(); ++t) {
+            cursors[t] = snapshot.index.getCursor(terms.get(t));
+            if (cursors[t] == null) return null;
+        }
 
-    private PostingsList searchIntersection(PostingsList q1, PostingsList q2) {
+        ProximityMatcher matcher = new ProximityMatcher(cursors, k, ordered);
         PostingsList answer = new PostingsList();
-        int i = 0;
-        int j = 0;
-        while (i < q1.size() && j < q2.size()) {
-            PostingsEntry postingsEntry1 = q1.get(i);
-            PostingsEntry postingsEntry2 = q2.get(j);
-            if (postingsEntry1.docID == postingsEntry2.docID) {
-                answer.addEntry(postingsEntry1);
-                ++i;
-                ++j;
-            } else if (postingsEntry1.docID < postingsEntry2.docID) ++i;
-            else ++j;
+        while (matcher.nextMatch() != PostingsCursor.NO_MORE_DOCS) {
+            answer.addEntry(new PostingsEntry(matcher.docID(), new ArrayList<>(matcher.windows())));
         }
+        if (answer.isEmpty()) return null;
         return answer;
     }
 
-    private PostingsList searchIntersection(ArrayList<PostingsList> postingsLists) {
-        Collections.sort(postingsLists, Collections.reverseOrder());
-        PostingsList answer = searchIntersection(postingsLists.get(0), postingsLists.get(1));
-        for (int i = 2; i < postingsLists.size(); ++i) {
-            answer = searchIntersection(answer, postingsLists.get(i));
+    /**
+     * Boolean query, see BooleanQuery. The terms of the query are joined
+     * again into the text typed, and the documents matching it are returned
+     * in docID order.
+     */
+    private PostingsList searchBoolean(IndexSnapshot snapshot, Query query) {
+        StringBuilder text = new StringBuilder();
+        for (Query.QueryTerm q : query.queryterm) {
+            text.append(q.term).append(' ');
         }
+        BooleanQuery booleanQuery;
+        try {
+            booleanQuery = BooleanQuery.parse(text.toString());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Malformed boolean query: " + e.getMessage());
+            return null;
+        }
+        PostingsCursor cursor = booleanQuery.plan(this, snapshot);
+        if (cursor == null) return null;
+        PostingsList answer = new PostingsList();
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            answer.addEntry(new PostingsEntry(cursor.docID(), 0.));
+        }
+        if (answer.isEmpty()) return null;
         return answer;
     }
 
-    private PostingsList searchPhrase(ArrayList<PostingsList> postingsLists) {
-        ArrayList<PostingsList> copy = (ArrayList<PostingsList>) postingsLists.clone();
-        PostingsList documents = searchIntersection(copy);
-        HashSet<Integer> documentsID = getDocumentsID(documents);
-        PostingsList answer = searchPhrase(postingsLists.get(0), postingsLists.get(1), documentsID);
-
-        for (int i = 2; i < postingsLists.size(); ++i) {
-            answer = searchPhrase(answer, postingsLists.get(i), documentsID);
+    /**
+     * Phrase query, see PhraseCursor.
+     */
+    private PostingsList searchPhrase(IndexSnapshot snapshot, Query query, ArrayList<PostingsCursor> words) {
+        PhraseCursor phrase = phraseCursor(snapshot, terms(query), words);
+        PostingsList answer = new PostingsList();
+        while (phrase.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            answer.addEntry(new PostingsEntry(phrase.docID(), phrase.positions()));
         }
-
         return answer;
     }
 
-
-    private HashSet<Integer> getDocumentsID(PostingsList documents) {
-        HashSet<Integer> result = new HashSet<>();
-
-        for (PostingsEntry postingsEntry : documents.getList()) {
-            result.add(postingsEntry.docID);
+    /**
+     * A cursor over the documents containing the phrase, or null if one of its
+     * words is not in the index.
+     */
+    PhraseCursor phraseCursor(IndexSnapshot snapshot, ArrayList<String> terms) {
+        ArrayList<PostingsCursor> words = new ArrayList<>();
+        for (String term : terms) {
+            PostingsCursor cursor = snapshot.index.getCursor(term);
+            if (cursor == null) return null;
+            words.add(cursor);
         }
-
-        return result;
+        return phraseCursor(snapshot, terms, words);
     }
 
-
-    private PostingsList searchPhrase(PostingsList p1, PostingsList p2, HashSet<Integer> documents) {
-        PostingsList answer = new PostingsList();
-        int entry1 = 0;
-        int entry2 = 0;
-
-        // the docID has to be the same
-        while (entry1 < p1.size() && entry2 < p2.size()) {
-            PostingsEntry postingsEntry1 = p1.get(entry1);
-            PostingsEntry postingsEntry2 = p2.get(entry2);
-
-            if (postingsEntry1.docID < postingsEntry2.docID) {
-                ++entry1;
-                continue;
-            } else if (postingsEntry1.docID > postingsEntry2.docID) {
-                ++entry2;
-                continue;
-            } else {
-                if (!documents.contains(postingsEntry1.docID)) {
-                    ++entry1;
-                    ++entry2;
-                    continue;
-                }
+    /**
+     * Covers the phrase with cursors. The cursors are those of the words, of
+     * the pairs of words in the biword index, if there is one, and of the
+     * pairs of words in the pair cache, see phrasePairs. The phrase is
+     * covered by the cheapest mix of them: the cost of a cursor is its number
+     * of documents; cost[i] is the cheapest cover of the first i words, and a
+     * pair may overlap the previous cursor, e.g. "of the city" as "of the" +
+     * "the city". Only the cached pairs of the cover chosen count as used by
+     * the pair cache.
+     */
+    private PhraseCursor phraseCursor(IndexSnapshot snapshot, ArrayList<String> terms, ArrayList<PostingsCursor> words) {
+        BiwordIndex biwordIndex = snapshot.biwordIndex;
+        int n = words.size();
+        PairCache.Pair[] pairs = new PairCache.Pair[Math.max(n - 1, 0)];
+        boolean cached = phrasePairs(snapshot, terms, words, pairs);
+        ArrayList<PostingsCursor> cursors = new ArrayList<>();
+        ArrayList<Integer> ends = new ArrayList<>();
+        long[] cost = new long[n + 1];
+        PostingsCursor[] cursor = new PostingsCursor[n + 1];
+        int[] previous = new int[n + 1];
+        // the pair of the pair cache of cursor[i], by its first word, or -1
+        int[] pair = new int[n + 1];
+        Arrays.fill(cost, Long.MAX_VALUE);
+        cost[0] = 0;
+        for (int i = 0; i < n; ++i) {
+            if (cost[i] == Long.MAX_VALUE) continue;
+            cover(cost, cursor, previous, pair, i, i + 1, words.get(i), -1);
+            if (i + 1 < n) {
+                cover(cost, cursor, previous, pair, i, i + 2, biwordCursor(biwordIndex, terms, i), -1);
+                cover(cost, cursor, previous, pair, i, i + 2, pairs[i] == null ? null : pairs[i].cursor(), i);
+            }
+            if (i > 0) {
+                cover(cost, cursor, previous, pair, i, i + 1, biwordCursor(biwordIndex, terms, i - 1), -1);
+                cover(cost, cursor, previous, pair, i, i + 1, pairs[i - 1] == null ? null : pairs[i - 1].cursor(), i - 1);
             }
+        }
+        long saved = 0;
+        boolean used = false;
+        for (int i = n; i > 0; i = previous[i]) {
+            cursors.add(0, cursor[i]);
+            ends.add(0, i - 1);
+            if (pair[i] >= 0) {
+                used = true;
+                saved += words.get(pair[i]).cost() + words.get(pair[i] + 1).cost() - pairs[pair[i]].size();
+            }
+        }
+        if (cached && used) {
+            pairCache.hit(saved);
+        } else if (cached) {
+            pairCache.miss();
+        }
 
-            ArrayList<Integer> offset1 = p1.get(entry1).offsets;
-            ArrayList<Integer> offset2 = p2.get(entry2).offsets;
-            int i = 0;
-            int j = 0;
-            ArrayList<Integer> words_post = new ArrayList<>();
-            while (i < offset1.size() && j < offset2.size()) {
-                int diff = offset1.get(i) - offset2.get(j);
-
-                if (diff == -1) {
-                    words_post.add(offset2.get(j));
-                    ++i;
-                    ++j;
-                } else if (diff < 0) ++i;
-                else if (diff > 0) ++j;
-                else {
-                    // if is the same word the diff will be 0, then add the second word
-                    ++j;
-                }
+        int[] end = new int[ends.size()];
+        for (int i = 0; i < end.length; ++i) {
+            end[i] = ends.get(i);
+        }
+        return new PhraseCursor(cursors.toArray(new PostingsCursor[0]), end);
+    }
 
-                if (i == offset1.size() && j < offset2.size() && offset1.get(i-1) > offset2.get(j)) {
-                    i = offset1.size() - 1;
-                } else if (i < offset1.size() && j == offset2.size() && offset1.get(i) < offset2.get(j-1)) {
-                    j = offset2.size() - 1;
-                }
+    /**
+     * Counts the pairs of consecutive words of a phrase in the pair cache,
+     * and sets the matches cached of every pair, by its first word. Pairs
+     * in the biword index are left to it. Without a cached pair, the pair
+     * counted most often is matched and cached, if it was counted often
+     * enough, and the phrase counts as not using the cache.
+     *
+     * @return Whether a pair was cached; the caller counts if it used one.
+     */
+    private boolean phrasePairs(IndexSnapshot snapshot, ArrayList<String> terms, ArrayList<PostingsCursor> words,
+                                PairCache.Pair[] pairs) {
+        int n = words.size();
+        if (n < 2) return false;
+        boolean cached = false;
+        int frequent = -1;
+        String frequentKey = null;
+        int mostFrequent = PairCache.ADMIT_FREQUENCY - 1;
+        for (int i = 0; i + 1 < n && i < PairCache.MAX_PAIR_TERMS; ++i) {
+            if (snapshot.biwordIndex != null && snapshot.biwordIndex.getPostings(terms.get(i), terms.get(i + 1)) != null) continue;
+            String key = PairCache.phraseKey(terms.get(i), terms.get(i + 1));
+            int frequency = pairCache.count(key);
+            pairs[i] = pairCache.get(key, snapshot.generation);
+            if (pairs[i] != null) {
+                cached = true;
+            } else if (frequency > mostFrequent) {
+                mostFrequent = frequency;
+                frequent = i;
+                frequentKey = key;
+            }
+        }
+        if (cached) return true;
+        pairCache.miss();
+        if (frequent >= 0) {
+            PostingsCursor first = snapshot.index.getCursor(terms.get(frequent));
+            PostingsCursor second = snapshot.index.getCursor(terms.get(frequent + 1));
+            if (first != null && second != null) {
+                pairs[frequent] = PairCache.Pair.of(snapshot.generation,
+                        new PhraseCursor(new PostingsCursor[] { first, second }, new int[] { 0, 1 }));
+                pairCache.put(frequentKey, pairs[frequent]);
             }
-            if (!words_post.isEmpty())
-                answer.addEntry(new PostingsEntry(p1.get(entry1).docID, words_post));
-            ++entry1;
-            ++entry2;
         }
+        return false;
+    }
 
-        return answer;
+    private void cover(long[] cost, PostingsCursor[] cursor, int[] previous, int[] pair, int from, int to,
+                       PostingsCursor candidate, int candidatePair) {
+        if (candidate == null) return;
+        if (cost[from] + candidate.cost() < cost[to]) {
+            cost[to] = cost[from] + candidate.cost();
+            cursor[to] = candidate;
+            previous[to] = from;
+            pair[to] = candidatePair;
+        }
+    }
+
+    private PostingsCursor biwordCursor(BiwordIndex biwordIndex, ArrayList<String> terms, int i) {
+        if (biwordIndex == null) return null;
+        PostingsList postingsList = biwordIndex.getPostings(terms.get(i), terms.get(i + 1));
+        if (postingsList == null) return null;
+        // a copy, so that the blocks are decoded for this query only
+        return new PostingsList(postingsList, 1.).cursor();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ *  Computes a value once for all the threads asking for the same key at the
+ *  same time: the first thread computes it, and the threads asking while it
+ *  does wait for its value instead of computing it again. When the value is
+ *  shared, every caller gets its own share of it, e.g. a copy, so that the
+ *  callers may change what they get.
+ *
+ *  The value is computed on the thread of the first caller, so it is never
+ *  left without a thread to finish it. A waiting thread that is interrupted
+ *  gives up alone: the others keep waiting, and the value is still
+ *  computed. The computation is never cancelled, not even when every
+ *  waiting thread gave up, since the first caller still wants the value;
+ *  it is then only not shared. If the computation fails, the failure is thrown to the first
+ *  caller only, and the waiting threads try again, one of them computing.
+ *  A key is forgotten as soon as its value is computed, so later callers
+ *  compute it anew, or find it in a cache the computation filled.
+ */
+class SingleFlight<K,V> {
+
+    /** A computation running. */
+    private static class Flight<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        boolean failed = true;
+
+        /** The number of callers still waiting, until closed when the value is computed. */
+        int waiters = 0;
+        boolean closed = false;
+    }
+
+    private final ConcurrentHashMap<K,Flight<V>> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong computed = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong gaveUp = new AtomicLong();
+
+
+    /**
+     *  The value of a key, shared with the other callers of the same key.
+     */
+    V run( K key, Callable<V> computation ) throws Exception {
+        return run(key, computation, UnaryOperator.identity());
+    }
+
+    /**
+     *  The value of a key; the callers that waited for another one to
+     *  compute it get <code>share</code> of its value, e.g. a copy. The
+     *  first caller gets the value itself if every waiting caller gave up.
+     *
+     *  @throws InterruptedException if the caller was interrupted waiting.
+     */
+    V run( K key, Callable<V> computation, UnaryOperator<V> share ) throws Exception {
+        while (true) {
+            Flight<V> flight = new Flight<>();
+            Flight<V> running = flights.putIfAbsent(key, flight);
+            if (running == null) {
+                computed.incrementAndGet();
+                boolean shared;
+                try {
+                    flight.value = computation.call();
+                    flight.failed = false;
+                } finally {
+                    flights.remove(key, flight);
+                    synchronized (flight) {
+                        flight.closed = true;
+                        shared = flight.waiters > 0;
+                    }
+                    flight.done.countDown();
+                }
+                // the value itself goes to nobody if others share it, so that
+                // no caller changes it while another one takes its share
+                return shared ? share.apply(flight.value) : flight.value;
+            }
+            synchronized (running) {
+                // too late to join, the value may be the first caller's alone
+                if (running.closed) continue;
+                ++running.waiters;
+            }
+            joined.incrementAndGet();
+            try {
+                running.done.await();
+            } catch ( InterruptedException e ) {
+                synchronized (running) {
+                    // the value is not shared with a caller that gave up
+                    if (!running.closed) --running.waiters;
+                }
+                gaveUp.incrementAndGet();
+                throw e;
+            }
+            if (!running.failed) return share.apply(running.value);
+        }
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT, "%d computed, %d joined a running computation, %d gave up waiting",
+                             computed.get(), joined.get(), gaveUp.get());
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  Query-biased snippets of the documents in a list of results.
+ *
+ *  The positions of the query terms in a document are read from the
+ *  postings, and the window of SNIPPET_WORDS words with the most weight of
+ *  different query terms in it is chosen. The window is then cut out of the
+ *  text in the document store by where its tokens are in the text, so the
+ *  document is never tokenized again, and the query terms in it are put in
+ *  bold. The snippets of a page of results are made in parallel, and the
+ *  ones made last are cached.
+ */
+public class Snippets {
+
+    /** The number of words in a snippet. */
+    static final int SNIPPET_WORDS = 24;
+
+    /** The number of words shown before the first query term of a snippet. */
+    static final int LEAD_WORDS = 4;
+
+    /** At most this many query terms, those of highest weight, are looked for. */
+    static final int MAX_TERMS = 16;
+
+    /** Text longer than this between two words is cut. */
+    static final int MAX_GAP = 40;
+
+    static final int CACHE_SIZE = 1000;
+
+    static final int SNIPPET_THREADS = 4;
+
+    private static ExecutorService workers;
+
+    Index index;
+
+    DocumentStore store;
+
+    /** The snippets made last, by query and docID. */
+    private LinkedHashMap<String,String> cache = new LinkedHashMap<String,String>(2 * CACHE_SIZE, 0.75f, true) {
+        protected boolean removeEldestEntry( Map.Entry<String,String> eldest ) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+
+    public Snippets( Index index, DocumentStore store ) {
+        this.index = index;
+        this.store = store;
+    }
+
+    /**
+     *  Returns the snippets of documents for a query, in HTML with the query
+     *  terms in bold. Without a query the snippets are the beginnings of the
+     *  documents.
+     */
+    public String[] snippets( Query query, int[] docIDs ) {
+        ArrayList<String> terms = new ArrayList<>();
+        ArrayList<Double> weights = new ArrayList<>();
+        terms(query, terms, weights);
+        StringBuilder key = new StringBuilder();
+        for (int t = 0; t < terms.size(); ++t) {
+            key.append(' ').append(terms.get(t)).append('^').append(weights.get(t));
+        }
+
+        String[] snippets = new String[docIDs.length];
+        ArrayList<Integer> missing = new ArrayList<>();
+        synchronized (cache) {
+            for (int i = 0; i < docIDs.length; ++i) {
+                snippets[i] = cache.get(docIDs[i] + key.toString());
+                if (snippets[i] == null) missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) return snippets;
+
+        final int[][][] positions = positions(terms, docIDs, missing);
+        final double[] w = new double[weights.size()];
+        for (int t = 0; t < w.length; ++t) {
+            w[t] = weights.get(t);
+        }
+        ArrayList<Future<String>> made = new ArrayList<>();
+        for (int i : missing) {
+            final int docID = docIDs[i];
+            final int[][] docPositions = positions[i];
+            made.add(workers().submit(() -> snippet(docID, docPositions, w)));
+        }
+        for (int k = 0; k < missing.size(); ++k) {
+            int i = missing.get(k);
+            try {
+                snippets[i] = made.get(k).get();
+            } catch ( InterruptedException | ExecutionException e ) {
+                e.printStackTrace();
+                snippets[i] = "";
+            }
+            synchronized (cache) {
+                cache.put(docIDs[i] + key.toString(), snippets[i]);
+            }
+        }
+        return snippets;
+    }
+
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(SNIPPET_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "snippets");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    /**
+     *  The words of a query to look for, those of highest weight first. The
+     *  operators of boolean and proximity queries, wildcards and quotes are
+     *  left out.
+     */
+    private void terms( Query query, ArrayList<String> terms, ArrayList<Double> weights ) {
+        if (query == null) return;
+        HashMap<String,Double> weight = new HashMap<>();
+        for (Query.QueryTerm q : query.queryterm) {
+            if (q.term.equals("AND") || q.term.equals("OR") || q.term.equals("NOT") || q.term.contains("*")) continue;
+            if (q.term.contains("NEAR/")) continue;
+            String term = q.term.replaceAll("^[\"(]+|[\")]+$", "").toLowerCase();
+            if (term.isEmpty()) continue;
+            Double w = weight.get(term);
+            weight.put(term, w == null ? q.weight : Math.max(w, q.weight));
+        }
+        ArrayList<Map.Entry<String,Double>> entries = new ArrayList<>(weight.entrySet());
+        entries.sort((a, b) -> a.getValue().equals(b.getValue()) ?
+                     a.getKey().compareTo(b.getKey()) : Double.compare(b.getValue(), a.getValue()));
+        for (int t = 0; t < entries.size() && t < MAX_TERMS; ++t) {
+            terms.add(entries.get(t).getKey());
+            weights.add(entries.get(t).getValue());
+        }
+    }
+
+    /**
+     *  The positions of the terms in the documents, by document and term,
+     *  null where a term is not in a document. Every postings list is
+     *  walked once, through the documents in docID order.
+     */
+    private int[][][] positions( ArrayList<String> terms, int[] docIDs, ArrayList<Integer> missing ) {
+        int[][][] positions = new int[docIDs.length][terms.size()][];
+        ArrayList<Integer> byDocID = new ArrayList<>(missing);
+        byDocID.sort((a, b) -> Integer.compare(docIDs[a], docIDs[b]));
+        for (int t = 0; t < terms.size(); ++t) {
+            PostingsCursor cursor = index.getCursor(terms.get(t));
+            if (cursor == null) continue;
+            for (int i : byDocID) {
+                int d = cursor.advance(docIDs[i]);
+                if (d == PostingsCursor.NO_MORE_DOCS) break;
+                if (d != docIDs[i]) continue;
+                ArrayList<Integer> p = cursor.positions();
+                positions[i][t] = new int[p.size()];
+                for (int k = 0; k < p.size(); ++k) {
+                    positions[i][t][k] = p.get(k);
+                }
+            }
+        }
+        return positions;
+    }
+
+    /**
+     *  The snippet of one document, given the positions of the terms in it.
+     */
+    String snippet( int docID, int[][] positions, double[] weights ) {
+        String text = store.get(docID);
+        int[] offsets = store.offsets(docID);
+        if (text == null || offsets == null) return "";
+        int words = offsets.length / 2;
+
+        // the hits, as position and term, sorted by position
+        int n = 0;
+        for (int[] p : positions) {
+            if (p != null) n += p.length;
+        }
+        long[] hits = new long[n];
+        n = 0;
+        for (int t = 0; t < positions.length; ++t) {
+            if (positions[t] == null) continue;
+            for (int p : positions[t]) {
+                hits[n++] = ((long) p << 32) | t;
+            }
+        }
+        Arrays.sort(hits);
+
+        // the window starting at a hit with the most weight of different terms
+        // in it, and then the most hits
+        int from = 0;
+        double best = 0;
+        int[] inWindow = new int[positions.length];
+        double windowWeight = 0;
+        for (int i = 0, j = 0; i < n; ++i) {
+            int start = (int) (hits[i] >>> 32);
+            while (j < n && (int) (hits[j] >>> 32) < start + SNIPPET_WORDS - LEAD_WORDS) {
+                int t = (int) hits[j];
+                if (inWindow[t]++ == 0) windowWeight += weights[t];
+                ++j;
+            }
+            double score = windowWeight + 1e-3 * (j - i);
+            if (score > best) {
+                best = score;
+                from = Math.max(0, start - LEAD_WORDS);
+            }
+            int t = (int) hits[i];
+            if (--inWindow[t] == 0) windowWeight -= weights[t];
+        }
+        int to = Math.min(words, from + SNIPPET_WORDS);
+
+        boolean[] hit = new boolean[to - from];
+        for (long h : hits) {
+            int p = (int) (h >>> 32);
+            if (p >= from && p < to) hit[p - from] = true;
+        }
+
+        StringBuilder snippet = new StringBuilder();
+        if (from > 0) snippet.append("... ");
+        for (int p = from; p < to; ++p) {
+            int start = Math.min(offsets[2 * p], text.length());
+            int end = Math.min(offsets[2 * p + 1], text.length());
+            if (p > from) {
+                int last = offsets[2 * p - 1];
+                if (start - last > MAX_GAP) {
+                    snippet.append(" ... ");
+                } else {
+                    appendEscaped(snippet, text, last, start);
+                }
+            }
+            if (hit[p - from]) snippet.append("<b>");
+            appendEscaped(snippet, text, start, end);
+            if (hit[p - from]) snippet.append("</b>");
+        }
+        if (to < words) snippet.append(" ...");
+        return snippet.toString();
+    }
+
+    /**
+     *  Appends text from start to end, escaped for HTML, with all white
+     *  space as single spaces.
+     */
+    static void appendEscaped( StringBuilder out, String text, int start, int end ) {
+        end = Math.min(end, text.length());
+        boolean space = false;
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!space) out.append(' ');
+                space = true;
+                continue;
+            }
+            space = false;
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
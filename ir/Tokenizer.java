@@ -68,6 +68,17 @@ public class Tokenizer {
     /** The next tokens to emit. */
     ArrayList<String> token_queue = new ArrayList<String>();
 
+    /** Where the next tokens to emit start and end in the input. */
+    ArrayList<Integer> start_queue = new ArrayList<Integer>();
+    ArrayList<Integer> end_queue = new ArrayList<Integer>();
+
+    /** The position in the input of the first character in the buffer. */
+    int buf_start = 0;
+
+    /** Where the token last returned starts and ends in the input. */
+    int start_offset = -1;
+    int end_offset = -1;
+
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
@@ -199,14 +210,30 @@ public class Tokenizer {
      */
     public String nextToken() throws IOException { 
         if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
+            if ( !readTokens() )
                 return null;
         }
-        else {
-            return token_queue.remove( 0 );
-        }
+        start_offset = start_queue.remove( 0 );
+        end_offset = end_queue.remove( 0 );
+        return token_queue.remove( 0 );
+    }
+
+
+    /**
+     *  @return the position in the input, in characters, of the first
+     *  character of the token last returned by @code{nextToken}.
+     */
+    public int startOffset() {
+        return start_offset;
+    }
+
+
+    /**
+     *  @return the position in the input, in characters, after the last
+     *  character of the token last returned by @code{nextToken}.
+     */
+    public int endOffset() {
+        return end_offset;
     }
 
 
@@ -246,11 +273,13 @@ public class Tokenizer {
                     // of the token we have read already into the 
                     // beginning of the buffer.
                     System.arraycopy( buf, token_start, buf, 0, BUFFER_LENGTH-token_start );
+                    buf_start += token_start;
                     refillBuffer( BUFFER_LENGTH-token_start );
                     ptr = BUFFER_LENGTH-token_start;
                     token_start = 0;
                 }
                 else {
+                    buf_start += BUFFER_LENGTH;
                     refillBuffer( 0 );
                     ptr = 0;
                 }
@@ -272,6 +301,7 @@ public class Tokenizer {
             return false;
         }
         String s = new String( buf, token_start, ptr-token_start );
+        int start = buf_start + token_start;
         if ( patterns != null ) {
             // Now let's see if the string s matches one of the patterns 
             // for non-standard words
@@ -281,8 +311,8 @@ public class Tokenizer {
                     // The string contains a non-standard word. First check the prefix 
                     // before the matching substring, then add the non-standard word  
                     // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
+                    addStandardTokensToQueue( s.substring(0, m.start() ), start );
+                    addToQueue( m.group(), start + m.start(), start + m.end() );
                     token_start += m.end();
                     addTokensToQueue();
                     return true;
@@ -290,15 +320,16 @@ public class Tokenizer {
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokensToQueue( s, start );
     }
 
 
     /**
      *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  expression) to the queue. The string starts at position
+     *  @code{start} in the input.
      */
-    private boolean addStandardTokensToQueue( String s ) {
+    private boolean addStandardTokensToQueue( String s, int start ) {
         // This string s does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
@@ -310,12 +341,12 @@ public class Tokenizer {
                 // unless it is empty
                 String t = smallbuf.toString();
                 if ( t.length()>0 ) {
-                    token_queue.add( t );
+                    addToQueue( t, start+i-t.length(), start+i );
                     smallbuf = new StringBuffer();
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    addToQueue( "" + s.charAt( i ), start+i, start+i+1 );
                     tokens_found = true;
                 }
             }
@@ -327,11 +358,21 @@ public class Tokenizer {
         // unless it is empty
         String t = smallbuf.toString();
         if ( t.length()>0 ) {
-            token_queue.add( t );
+            addToQueue( t, start+s.length()-t.length(), start+s.length() );
             tokens_found = true;
         }   
         return tokens_found;
     }
+
+
+    /**
+     *  Adds a token to the queue, with where it starts and ends in the input.
+     */
+    private void addToQueue( String t, int start, int end ) {
+        token_queue.add( t );
+        start_queue.add( start );
+        end_queue.add( end );
+    }
     
 
     /**